@@ -0,0 +1,194 @@
+package org.endeavourhealth.sftpreader.benchmark;
+
+import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.*;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.*;
+import org.endeavourhealth.sftpreader.model.db.DbConfigurationPgp;
+import org.endeavourhealth.sftpreader.utilities.PgpUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * measures the decryption speed of PgpUtil.decryptAndVerify, for each decryptor implementation, on files encrypted
+ * and signed in the same way as EMIS send them. Keys and files are generated locally when each trial starts, so
+ * no real keys or data are needed. The "megabytes" result is the MB/s of encrypted input decrypted.
+ *
+ * e.g. java -jar benchmarks.jar PgpDecryptBenchmark -p sizeMb=1024
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PgpDecryptBenchmark {
+
+    private static final String PASSWORD = "benchmark";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    @State(Scope.Benchmark)
+    public static class EncryptedFile {
+
+        @Param({PgpUtil.DECRYPTOR_BC, PgpUtil.DECRYPTOR_JCE})
+        public String decryptor;
+
+        @Param({"10", "100"})
+        public int sizeMb;
+
+        @Param({"uncompressed", "zip", "zlib"})
+        public String compression;
+
+        File encryptedFile;
+        File decryptedFile;
+        double encryptedMb;
+        DbConfigurationPgp pgpConfiguration;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            if (Security.getProvider("BC") == null) {
+                Security.addProvider(new BouncyCastleProvider());
+            }
+
+            PGPSecretKeyRing recipientKeys = generateKeyRing("recipient@example.com");
+            PGPSecretKeyRing senderKeys = generateKeyRing("sender@example.com");
+
+            encryptedFile = Files.createTempFile("pgp-benchmark", ".gpg").toFile();
+            decryptedFile = Files.createTempFile("pgp-benchmark", ".csv").toFile();
+
+            encryptAndSign(encryptedFile, recipientKeys.getPublicKey(), senderKeys.getSecretKey(), getCompressionAlgorithm(compression), sizeMb);
+            encryptedMb = encryptedFile.length() / (1024d * 1024d);
+
+            pgpConfiguration = new DbConfigurationPgp()
+                    .setPgpRecipientPrivateKey(armour(recipientKeys))
+                    .setPgpRecipientPrivateKeyPassword(PASSWORD)
+                    .setPgpSenderPublicKey(armour(new PGPPublicKeyRing(senderKeys.getPublicKey().getEncoded(), new JcaKeyFingerprintCalculator())));
+
+            PgpUtil.setDecryptor(decryptor);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            PgpUtil.evictKeys(pgpConfiguration);
+            encryptedFile.delete();
+            decryptedFile.delete();
+        }
+    }
+
+    /**
+     * counts the MB decrypted, which JMH reports as a rate alongside the number of files
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @Benchmark
+    public void decryptAndVerify(EncryptedFile file, Throughput throughput) throws Exception {
+        try (InputStream inputStream = new FileInputStream(file.encryptedFile)) {
+            PgpUtil.decryptAndVerify(inputStream, file.decryptedFile.getPath(), file.pgpConfiguration);
+        }
+        throughput.megabytes += file.encryptedMb;
+    }
+
+    private static int getCompressionAlgorithm(String compression) {
+        switch (compression) {
+            case "uncompressed":
+                return CompressionAlgorithmTags.UNCOMPRESSED;
+            case "zip":
+                return CompressionAlgorithmTags.ZIP;
+            case "zlib":
+                return CompressionAlgorithmTags.ZLIB;
+            default:
+                throw new IllegalArgumentException("Unknown compression " + compression);
+        }
+    }
+
+    private static PGPSecretKeyRing generateKeyRing(String identity) throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA", "BC");
+        keyPairGenerator.initialize(2048);
+        PGPKeyPair keyPair = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, keyPairGenerator.generateKeyPair(), new Date());
+
+        PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build().get(HashAlgorithmTags.SHA1);
+        PGPKeyRingGenerator keyRingGenerator = new PGPKeyRingGenerator(PGPSignature.POSITIVE_CERTIFICATION, keyPair, identity, sha1Calc, null, null,
+                new JcaPGPContentSignerBuilder(keyPair.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256),
+                new JcePBESecretKeyEncryptorBuilder(SymmetricKeyAlgorithmTags.AES_256, sha1Calc).setProvider("BC").build(PASSWORD.toCharArray()));
+
+        return keyRingGenerator.generateSecretKeyRing();
+    }
+
+    private static String armour(PGPKeyRing keyRing) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ArmoredOutputStream armouredOut = new ArmoredOutputStream(out)) {
+            keyRing.encode(armouredOut);
+        }
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * writes a signed, compressed and AES-256 encrypted file of CSV-like content, which compresses about as well as real extracts
+     */
+    private static void encryptAndSign(File file, PGPPublicKey recipientKey, PGPSecretKey senderKey, int compressionAlgorithm, int sizeMb) throws Exception {
+
+        PGPPrivateKey senderPrivateKey = senderKey.extractPrivateKey(new JcePBESecretKeyDecryptorBuilder().setProvider("BC").build(PASSWORD.toCharArray()));
+
+        PGPEncryptedDataGenerator encryptedDataGenerator = new PGPEncryptedDataGenerator(
+                new JcePGPDataEncryptorBuilder(SymmetricKeyAlgorithmTags.AES_256)
+                        .setWithIntegrityPacket(true)
+                        .setSecureRandom(new SecureRandom())
+                        .setProvider("BC"));
+        encryptedDataGenerator.addMethod(new JcePublicKeyKeyEncryptionMethodGenerator(recipientKey).setProvider("BC"));
+
+        PGPSignatureGenerator signatureGenerator = new PGPSignatureGenerator(
+                new JcaPGPContentSignerBuilder(senderKey.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256).setProvider("BC"));
+        signatureGenerator.init(PGPSignature.BINARY_DOCUMENT, senderPrivateKey);
+
+        try (OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE)) {
+
+            OutputStream encryptedOut = encryptedDataGenerator.open(fileOut, new byte[BUFFER_SIZE]);
+
+            PGPCompressedDataGenerator compressedDataGenerator = new PGPCompressedDataGenerator(compressionAlgorithm);
+            OutputStream compressedOut = compressedDataGenerator.open(encryptedOut, new byte[BUFFER_SIZE]);
+
+            signatureGenerator.generateOnePassVersion(false).encode(compressedOut);
+
+            PGPLiteralDataGenerator literalDataGenerator = new PGPLiteralDataGenerator();
+            OutputStream literalOut = literalDataGenerator.open(compressedOut, PGPLiteralData.BINARY, "benchmark.csv", new Date(), new byte[BUFFER_SIZE]);
+
+            Random random = new Random(sizeMb);
+            long bytesRemaining = sizeMb * 1024L * 1024L;
+            long row = 0;
+            while (bytesRemaining > 0) {
+                String line = "\"" + (row++) + "\",\"" + Long.toHexString(random.nextLong()) + "\",\"" + random.nextInt(100000)
+                        + "\",\"2019-" + (1 + random.nextInt(12)) + "-" + (1 + random.nextInt(28)) + "\",\"Observation value\",\"" + random.nextDouble() + "\"\r\n";
+                byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                literalOut.write(bytes);
+                signatureGenerator.update(bytes);
+                bytesRemaining -= bytes.length;
+            }
+
+            literalDataGenerator.close();
+            signatureGenerator.generate().encode(compressedOut);
+            compressedDataGenerator.close();
+            encryptedDataGenerator.close();
+        }
+    }
+}
@@ -2,13 +2,16 @@ CREATE DATABASE sftp_reader;
 USE sftp_reader;
 
 DROP TABLE IF EXISTS configuration_paused_notifying;
+DROP TABLE IF EXISTS remote_listing_watermark;
 DROP TABLE IF EXISTS configuration_polling_attempt;
 DROP TABLE IF EXISTS unknown_file;
 DROP TABLE IF EXISTS notification_message;
+DROP TABLE IF EXISTS batch_stage_checkpoint;
 DROP TABLE IF EXISTS batch_split;
 DROP TABLE IF EXISTS batch_file;
 DROP TABLE IF EXISTS batch;
 DROP TABLE IF EXISTS tpp_organisation_map;
+DROP TABLE IF EXISTS configuration_lease;
 DROP TABLE IF EXISTS instance_configuration;
 DROP TABLE IF EXISTS instance;
 DROP TABLE IF EXISTS emis_organisation_map;
@@ -96,6 +99,7 @@ CREATE TABLE configuration_sftp
   client_private_key mediumtext NOT NULL,
   client_private_key_password varchar(1000) NOT NULL,
   host_public_key mediumtext NOT NULL,
+  download_threads integer COMMENT 'number of files downloaded at once, using separate SFTP channels (null = one at a time)',
   CONSTRAINT configurationsftp_configurationid_pk PRIMARY KEY (configuration_id),
   CONSTRAINT configurationsftp_configurationid_fk FOREIGN KEY (configuration_id)
       REFERENCES configuration (configuration_id) MATCH SIMPLE
@@ -135,6 +139,10 @@ CREATE TABLE instance
   instance_name varchar(100) NOT NULL,
   hostname varchar(500),
   http_management_port integer,
+  max_concurrent_tasks integer,
+  lease_pool varchar(100) COMMENT 'if set, configurations are shared between all instances in this pool using leases',
+  lease_heartbeat_date datetime,
+  max_download_kb_per_second integer COMMENT 'total download bandwidth shared by all configurations on this instance (null = unlimited)',
   last_config_get_date datetime,
   CONSTRAINT configuration_instance_instancename_pk PRIMARY KEY (instance_name)
 );
@@ -153,6 +161,17 @@ CREATE TABLE instance_configuration
   CONSTRAINT instanceconfiguration_configurationid_uq UNIQUE (configuration_id)
 );
 
+CREATE TABLE configuration_lease
+(
+  configuration_id varchar(100) NOT NULL,
+  instance_name varchar(100) NOT NULL,
+  lease_expires datetime NOT NULL,
+  CONSTRAINT configurationlease_configurationid_pk PRIMARY KEY (configuration_id),
+  CONSTRAINT configurationlease_configurationid_fk FOREIGN KEY (configuration_id)
+      REFERENCES configuration (configuration_id) MATCH SIMPLE
+      ON UPDATE NO ACTION ON DELETE NO ACTION
+);
+
 CREATE TABLE tpp_organisation_map
 (
   ods_code varchar(255) NOT NULL,
@@ -199,6 +218,7 @@ CREATE TABLE batch_file
   is_downloaded boolean NOT NULL DEFAULT false,
   download_date datetime null,
   is_deleted boolean default false,
+  content_hash char(64) null COMMENT 'SHA-256 of the downloaded file, in hex',
   CONSTRAINT batchfile_batchfileid_pk PRIMARY KEY (batch_file_id),
   CONSTRAINT batchfile_batchid_fk FOREIGN KEY (batch_id)
       REFERENCES batch (batch_id) MATCH SIMPLE
@@ -208,6 +228,9 @@ CREATE TABLE batch_file
 
 ALTER TABLE batch_file MODIFY COLUMN batch_file_id INT auto_increment;
 
+CREATE INDEX ix_batchfile_contenthash on batch_file (content_hash);
+CREATE INDEX ix_batchfile_remotecreateddate on batch_file (remote_created_date);
+
 CREATE TABLE batch_split
 (
   batch_split_id int NOT NULL,
@@ -232,6 +255,18 @@ create index log_batchsplit_configurationid_localrelativepath on batch_split (co
 
 CREATE INDEX batch_split_batch_id ON batch_split (batch_id);
 
+CREATE TABLE batch_stage_checkpoint
+(
+  batch_id integer NOT NULL,
+  stage varchar(255) NOT NULL COMMENT 'processing stage completed, optionally suffixed with the organisation ID',
+  detail varchar(255) NULL COMMENT 'description of the stage output, used to check it is still intact',
+  completed_date datetime NOT NULL,
+  CONSTRAINT batchstagecheckpoint_batchid_stage_pk PRIMARY KEY (batch_id, stage),
+  CONSTRAINT batchstagecheckpoint_batchid_fk FOREIGN KEY (batch_id)
+      REFERENCES batch (batch_id) MATCH SIMPLE
+      ON UPDATE NO ACTION ON DELETE NO ACTION
+);
+
 CREATE TABLE notification_message
 (
   notification_message_id int NOT NULL,
@@ -289,6 +324,17 @@ CREATE TABLE configuration_polling_attempt (
       ON UPDATE NO ACTION ON DELETE NO ACTION
 );
 
+-- the latest modified date of the remote files we've got, so we only need to look at files newer than this
+CREATE TABLE remote_listing_watermark (
+  configuration_id varchar(100) NOT NULL,
+  last_modified datetime NOT NULL,
+  last_full_listing datetime NOT NULL,
+	CONSTRAINT remote_listing_watermark_pk PRIMARY KEY (configuration_id),
+	CONSTRAINT remote_listing_watermark_fk FOREIGN KEY (configuration_id)
+      REFERENCES configuration (configuration_id) MATCH SIMPLE
+      ON UPDATE NO ACTION ON DELETE NO ACTION
+);
+
 CREATE TABLE adastra_organisation_map (
   ods_code varchar(255) NOT NULL,
   file_name_org_code varchar(255) NOT NULL,
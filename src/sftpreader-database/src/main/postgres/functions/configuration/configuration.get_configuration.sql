@@ -43,7 +43,8 @@ begin
 		cs.username,
 		cs.client_private_key,
 		cs.client_private_key_password,
-		cs.host_public_key
+		cs.host_public_key,
+		cs.download_threads
 	from configuration.configuration_sftp cs
 	where cs.configuration_id = _configuration_id;
 	
@@ -8,6 +8,7 @@ returns setof refcursor
 as $$
 declare
 	_existing_hostname varchar(500);
+	_lease_pool varchar(100);
 	instance refcursor;
 	configuration_instance refcursor;
 	configuration_eds refcursor;
@@ -51,10 +52,19 @@ begin
 		return;
 	end if;
 
+	select
+		i.lease_pool into _lease_pool
+	from configuration.instance i
+	where i.instance_name = _instance_name;
+
+	-- instances in a lease pool can process any configuration assigned to an instance in the same pool
 	if not exists
 	(
 		select *
-		from configuration.instance_configuration ic		where ic.instance_name = _instance_name
+		from configuration.instance_configuration ic
+		inner join configuration.instance i on i.instance_name = ic.instance_name
+		where ic.instance_name = _instance_name
+		or i.lease_pool = _lease_pool
 	)
 	then
 		raise exception 'There are no configurations associated with INSTANCE_NAME %', _instance_name;
@@ -73,7 +83,10 @@ begin
 	open instance for
 	select
 		instance_name,
-		http_management_port
+		http_management_port,
+		max_concurrent_tasks,
+		lease_pool,
+		max_download_kb_per_second
 	from configuration.instance
 	where instance_name = _instance_name;
 
@@ -84,8 +97,11 @@ begin
 
 	open configuration_instance for
 	select
-		configuration_id
-	from configuration.instance_configuration	where instance_name = _instance_name;
+		ic.configuration_id
+	from configuration.instance_configuration ic
+	inner join configuration.instance i on i.instance_name = ic.instance_name
+	where ic.instance_name = _instance_name
+	or i.lease_pool = _lease_pool;
 
 	return next configuration_instance;
 
@@ -0,0 +1,3 @@
+-- number of configurations an instance may run at the same time (null = one at a time)
+alter table configuration.instance
+add max_concurrent_tasks int;
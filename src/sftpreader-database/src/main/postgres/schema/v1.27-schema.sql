@@ -0,0 +1,16 @@
+-- records which processing stages have been completed for an incomplete batch, so a restarted run can resume
+CREATE TABLE log.batch_stage_checkpoint
+(
+	batch_id integer NOT NULL,
+	stage character varying(255) NOT NULL,
+	detail character varying(255),
+	completed_date timestamp without time zone NOT NULL,
+	CONSTRAINT log_batchstagecheckpoint_batchid_stage_pk PRIMARY KEY (batch_id, stage),
+	CONSTRAINT log_batchstagecheckpoint_batchid_fk FOREIGN KEY (batch_id) REFERENCES log.batch (batch_id)
+)
+WITH (
+  OIDS=FALSE
+);
+ALTER TABLE log.batch_stage_checkpoint
+  OWNER TO postgres;
+GRANT ALL ON TABLE log.batch_stage_checkpoint TO postgres;
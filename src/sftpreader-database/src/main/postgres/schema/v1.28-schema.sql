@@ -0,0 +1,19 @@
+-- allows a pool of instances to share configurations between them, using leases
+alter table configuration.instance
+add lease_pool varchar(100),
+add lease_heartbeat_date timestamp without time zone;
+
+CREATE TABLE configuration.configuration_lease
+(
+	configuration_id character varying(100) NOT NULL,
+	instance_name character varying(100) NOT NULL,
+	lease_expires timestamp without time zone NOT NULL,
+	CONSTRAINT configuration_configurationlease_configurationid_pk PRIMARY KEY (configuration_id),
+	CONSTRAINT configuration_configurationlease_configurationid_fk FOREIGN KEY (configuration_id) REFERENCES configuration.configuration (configuration_id)
+)
+WITH (
+  OIDS=FALSE
+);
+ALTER TABLE configuration.configuration_lease
+  OWNER TO postgres;
+GRANT ALL ON TABLE configuration.configuration_lease TO postgres;
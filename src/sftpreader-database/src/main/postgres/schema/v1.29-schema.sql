@@ -0,0 +1,3 @@
+-- number of files downloaded at once for a configuration, using separate SFTP channels (null = one at a time)
+alter table configuration.configuration_sftp
+add download_threads int;
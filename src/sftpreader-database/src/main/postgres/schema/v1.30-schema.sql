@@ -0,0 +1,3 @@
+-- total download bandwidth shared by all configurations on an instance (null = unlimited)
+alter table configuration.instance
+add max_download_kb_per_second int;
@@ -0,0 +1,5 @@
+-- SHA-256 of each downloaded file, so the same content delivered twice can be detected
+alter table log.batch_file
+add content_hash char(64);
+
+create index log_batchfile_contenthash_ix on log.batch_file (content_hash);
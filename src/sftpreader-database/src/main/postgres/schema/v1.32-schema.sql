@@ -0,0 +1,15 @@
+-- the latest modified date of the remote files we've got, so we only need to look at files newer than this
+CREATE TABLE log.remote_listing_watermark
+(
+	configuration_id character varying(100) NOT NULL,
+	last_modified timestamp without time zone NOT NULL,
+	last_full_listing timestamp without time zone NOT NULL,
+	CONSTRAINT log_remotelistingwatermark_configurationid_pk PRIMARY KEY (configuration_id),
+	CONSTRAINT log_remotelistingwatermark_configurationid_fk FOREIGN KEY (configuration_id) REFERENCES configuration.configuration (configuration_id)
+)
+WITH (
+  OIDS=FALSE
+);
+ALTER TABLE log.remote_listing_watermark
+  OWNER TO postgres;
+GRANT ALL ON TABLE log.remote_listing_watermark TO postgres;
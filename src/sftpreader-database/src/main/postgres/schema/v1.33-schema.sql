@@ -0,0 +1,2 @@
+-- incremental listings only load the downloaded files modified since the watermark cut-off
+CREATE INDEX ix_batchfile_remotecreateddate on log.batch_file (remote_created_date);
@@ -0,0 +1,163 @@
+package org.endeavourhealth.sftpreader;
+
+import org.endeavourhealth.sftpreader.model.DataLayerI;
+import org.endeavourhealth.sftpreader.model.db.ConfigurationPollingAttempt;
+import org.endeavourhealth.sftpreader.model.db.DbConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * works out when a configuration should next be polled, based on when files have previously been received
+ *
+ * Most feeds deliver on a predictable weekly pattern, so we look back over the previous polling attempts that
+ * downloaded files and work out which hours of the week files arrive in. Inside those hours we poll at the floor
+ * frequency and outside them we back off towards the ceiling, but never so far that we'd miss the start of the
+ * next window. If there's not enough history to go on, we just use the fixed poll frequency.
+ *
+ * Enabled per configuration in the configuration_kvp table.
+ */
+public class AdaptivePollFrequency {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptivePollFrequency.class);
+
+    private static final String ADAPTIVE_POLL_ENABLED = "AdaptivePollEnabled";
+    private static final String ADAPTIVE_POLL_FLOOR_SECONDS = "AdaptivePollFloorSeconds";
+    private static final String ADAPTIVE_POLL_CEILING_SECONDS = "AdaptivePollCeilingSeconds";
+
+    private static final int HOURS_IN_WEEK = 7 * 24;
+    private static final int LOOKBACK_WEEKS = 6;
+    private static final int MIN_WEEKS_FOR_WINDOW = 2; //an hour must have had deliveries in at least this many weeks
+    private static final int MIN_DELIVERIES_TO_LEARN = 5;
+    private static final int RELEARN_HOURS = 24;
+
+    private final DataLayerI db;
+    private final DbConfiguration dbConfiguration;
+    private final boolean enabled;
+    private final int floorSeconds;
+    private final int ceilingSeconds;
+
+    private boolean[] deliveryWindows = null; //indexed by hour of week, or null if not enough history
+    private LocalDateTime lastLearned = null;
+
+    public AdaptivePollFrequency(DataLayerI db, DbConfiguration dbConfiguration) {
+        this.db = db;
+        this.dbConfiguration = dbConfiguration;
+
+        int pollFrequencySeconds = dbConfiguration.getPollFrequencySeconds();
+        this.enabled = Boolean.parseBoolean(dbConfiguration.getKvpValue(ADAPTIVE_POLL_ENABLED));
+        this.floorSeconds = dbConfiguration.getKvpInt(ADAPTIVE_POLL_FLOOR_SECONDS, Math.min(60, pollFrequencySeconds));
+        this.ceilingSeconds = Math.max(floorSeconds, dbConfiguration.getKvpInt(ADAPTIVE_POLL_CEILING_SECONDS, pollFrequencySeconds * 4));
+    }
+
+    /**
+     * returns the number of seconds until the configuration should next be polled
+     */
+    public synchronized int getNextPollSeconds() {
+        int pollFrequencySeconds = dbConfiguration.getPollFrequencySeconds();
+        if (!enabled) {
+            return pollFrequencySeconds;
+        }
+
+        LocalDateTime now = LocalDateTime.now();
+        relearnIfNecessary(now);
+
+        if (deliveryWindows == null) {
+            return pollFrequencySeconds;
+        }
+
+        if (deliveryWindows[getHourOfWeek(now)]) {
+            return floorSeconds;
+        }
+
+        //outside a window, so back off, but wake up in time for the next window
+        LocalDateTime nextWindowStart = findNextWindowStart(now);
+        long secondsToWindow = ChronoUnit.SECONDS.between(now, nextWindowStart);
+        long ret = Math.min(ceilingSeconds, secondsToWindow);
+        return (int)Math.max(floorSeconds, ret);
+    }
+
+    private void relearnIfNecessary(LocalDateTime now) {
+        if (lastLearned != null
+                && lastLearned.plusHours(RELEARN_HOURS).isAfter(now)) {
+            return;
+        }
+        lastLearned = now;
+
+        try {
+            Date since = Date.from(now.minusWeeks(LOOKBACK_WEEKS).atZone(ZoneId.systemDefault()).toInstant());
+            List<ConfigurationPollingAttempt> attempts = db.getPollingAttemptsWithDownloads(dbConfiguration.getConfigurationId(), since);
+            this.deliveryWindows = learnWindows(attempts);
+
+        } catch (Exception ex) {
+            //don't let a DB problem stop polling - just fall back to the fixed frequency until we next try
+            LOG.error("Failed to learn delivery windows for " + dbConfiguration.getConfigurationId(), ex);
+            this.deliveryWindows = null;
+        }
+    }
+
+    private boolean[] learnWindows(List<ConfigurationPollingAttempt> attempts) {
+        if (attempts.size() < MIN_DELIVERIES_TO_LEARN) {
+            LOG.debug("Only " + attempts.size() + " deliveries found for " + dbConfiguration.getConfigurationId() + " so using fixed poll frequency");
+            return null;
+        }
+
+        //count the distinct weeks that had a delivery in each hour of the week
+        Set<String> hourAndWeeks = new HashSet<>();
+        int[] weeksWithDelivery = new int[HOURS_IN_WEEK];
+        for (ConfigurationPollingAttempt attempt : attempts) {
+            LocalDateTime started = LocalDateTime.ofInstant(attempt.getAttemptStarted().toInstant(), ZoneId.systemDefault());
+            int hourOfWeek = getHourOfWeek(started);
+            long weekNumber = started.toLocalDate().toEpochDay() / 7;
+            if (hourAndWeeks.add(hourOfWeek + "_" + weekNumber)) {
+                weeksWithDelivery[hourOfWeek]++;
+            }
+        }
+
+        //treat the hour either side of each delivery hour as part of the window, to allow for a bit of drift
+        boolean[] ret = new boolean[HOURS_IN_WEEK];
+        int windowHours = 0;
+        for (int i = 0; i < HOURS_IN_WEEK; i++) {
+            if (weeksWithDelivery[i] >= MIN_WEEKS_FOR_WINDOW) {
+                ret[(i + HOURS_IN_WEEK - 1) % HOURS_IN_WEEK] = true;
+                ret[i] = true;
+                ret[(i + 1) % HOURS_IN_WEEK] = true;
+            }
+        }
+        for (boolean b : ret) {
+            if (b) {
+                windowHours++;
+            }
+        }
+
+        if (windowHours == 0) {
+            LOG.debug("No regular delivery pattern found for " + dbConfiguration.getConfigurationId() + " so using fixed poll frequency");
+            return null;
+        }
+
+        LOG.info("Learned " + windowHours + " delivery hours per week for " + dbConfiguration.getConfigurationId() + " from " + attempts.size() + " deliveries");
+        return ret;
+    }
+
+    private LocalDateTime findNextWindowStart(LocalDateTime now) {
+        LocalDateTime hour = now.truncatedTo(ChronoUnit.HOURS);
+        for (int i = 1; i <= HOURS_IN_WEEK; i++) {
+            LocalDateTime candidate = hour.plusHours(i);
+            if (deliveryWindows[getHourOfWeek(candidate)]) {
+                return candidate;
+            }
+        }
+        return now.plusSeconds(ceilingSeconds);
+    }
+
+    private static int getHourOfWeek(LocalDateTime dt) {
+        return ((dt.getDayOfWeek().getValue() - 1) * 24) + dt.getHour();
+    }
+}
@@ -0,0 +1,149 @@
+package org.endeavourhealth.sftpreader;
+
+import org.endeavourhealth.common.utility.MetricsHelper;
+import org.endeavourhealth.sftpreader.model.DataLayerI;
+import org.endeavourhealth.sftpreader.model.db.DbConfiguration;
+import org.endeavourhealth.sftpreader.model.db.DbInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * when an instance is in a lease pool, this works out which of the pool's configurations this instance should be
+ * processing. Each instance heartbeats every minute, renewing the leases it holds and claiming unheld or expired
+ * leases up to its fair share of the pool's configurations (giving up any extras it's not currently running).
+ * If an instance dies, its leases expire and the other instances take them over.
+ *
+ * The configuration lock is still what prevents two instances processing the same configuration at once, since
+ * a lease could expire while a long-running task is still running (e.g. if the DB is unavailable for a while).
+ */
+public class ConfigurationLeaseManager {
+    private static final Logger LOG = LoggerFactory.getLogger(ConfigurationLeaseManager.class);
+
+    private static final int HEARTBEAT_SECONDS = 60;
+    private static final int LEASE_SECONDS = 5 * 60;
+
+    private final DataLayerI db;
+    private final String instanceName;
+    private final String leasePool;
+    private final List<String> configurationIds = new ArrayList<>();
+    private final Set<String> heldLeases = ConcurrentHashMap.newKeySet();
+    private Predicate<String> isRunningCheck = null;
+    private ScheduledExecutorService heartbeatExecutor = null;
+
+    public ConfigurationLeaseManager(Configuration configuration) throws Exception {
+        DbInstance dbInstance = configuration.getInstanceConfiguration();
+
+        this.db = configuration.getDataLayer();
+        this.instanceName = configuration.getInstanceName();
+        this.leasePool = dbInstance.getLeasePool();
+
+        for (DbConfiguration dbConfiguration : configuration.getConfigurations()) {
+            configurationIds.add(dbConfiguration.getConfigurationId());
+        }
+    }
+
+    /**
+     * if not in a lease pool, all configurations for this instance are always processed
+     */
+    public boolean isEnabled() {
+        return leasePool != null;
+    }
+
+    public boolean isHeld(String configurationId) {
+        return !isEnabled()
+                || heldLeases.contains(configurationId);
+    }
+
+    /**
+     * starts the heartbeat, taking the first leases before returning, so the scheduler can start straight away
+     */
+    public void start(Predicate<String> isRunningCheck) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        LOG.info("Sharing " + configurationIds.size() + " configurations with other instances in lease pool " + leasePool);
+        this.isRunningCheck = isRunningCheck;
+
+        heartbeat();
+
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "LeaseHeartbeat"));
+        heartbeatExecutor.scheduleWithFixedDelay(() -> heartbeat(), HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (heartbeatExecutor == null) {
+            return;
+        }
+
+        heartbeatExecutor.shutdownNow();
+
+        //give up our leases so the other instances can take over without waiting for them to expire
+        for (String configurationId : new ArrayList<>(heldLeases)) {
+            try {
+                db.releaseConfigurationLease(configurationId, instanceName);
+            } catch (Exception ex) {
+                LOG.error("Failed to release lease on " + configurationId, ex);
+            }
+        }
+        heldLeases.clear();
+    }
+
+    private synchronized void heartbeat() {
+        try {
+            db.updateLeaseHeartbeat(instanceName);
+
+            //work out our fair share, counting ourselves in case our heartbeat isn't visible yet
+            int liveInstances = Math.max(1, db.countLiveLeaseInstances(leasePool, LEASE_SECONDS));
+            int fairShare = (configurationIds.size() + liveInstances - 1) / liveInstances;
+
+            //renew what we hold, noting any we've lost (e.g. if we couldn't heartbeat in time)
+            for (String configurationId : new ArrayList<>(heldLeases)) {
+                if (!db.acquireConfigurationLease(configurationId, instanceName, LEASE_SECONDS)) {
+                    LOG.warn("Lost lease on " + configurationId + " to another instance");
+                    heldLeases.remove(configurationId);
+                }
+            }
+
+            //if we've got more than our share, give up ones we're not running, so they can move elsewhere
+            for (String configurationId : new ArrayList<>(heldLeases)) {
+                if (heldLeases.size() <= fairShare) {
+                    break;
+                }
+                if (!isRunningCheck.test(configurationId)) {
+                    LOG.info("Releasing lease on " + configurationId + " to rebalance across " + liveInstances + " instances");
+                    db.releaseConfigurationLease(configurationId, instanceName);
+                    heldLeases.remove(configurationId);
+                }
+            }
+
+            //and if we've got less than our share, try to claim any unheld or expired ones
+            for (String configurationId : configurationIds) {
+                if (heldLeases.size() >= fairShare) {
+                    break;
+                }
+                if (heldLeases.contains(configurationId)) {
+                    continue;
+                }
+                if (db.acquireConfigurationLease(configurationId, instanceName, LEASE_SECONDS)) {
+                    LOG.info("Acquired lease on " + configurationId);
+                    heldLeases.add(configurationId);
+                }
+            }
+
+            MetricsHelper.recordValue(instanceName + ".leases-held", heldLeases.size());
+
+        } catch (Throwable t) {
+            //if we can't talk to the DB our leases will expire, so stop running anything until we can
+            LOG.error("Error in lease heartbeat for " + instanceName, t);
+            heldLeases.clear();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package org.endeavourhealth.sftpreader;
+
+import com.google.common.base.Strings;
+import org.endeavourhealth.common.utility.MetricsHelper;
+import org.endeavourhealth.sftpreader.model.db.DbConfiguration;
+import org.endeavourhealth.sftpreader.model.db.DbConfigurationSftp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * for configurations that read from a local (or mounted) directory rather than an SFTP server, this watches the
+ * directory for new files so the configuration can be run as soon as something arrives, rather than waiting for
+ * its next poll. Events for a configuration are held until its directory has been quiet for a few seconds, so a
+ * file being copied in (or a whole extract of files) only results in a single run.
+ *
+ * The normal scheduled poll carries on as before as a reconciliation scan, so anything the watch service misses
+ * (e.g. files written by another machine to an NFS mount, which doesn't raise local events) is still picked up.
+ * Enabled by setting WatchLocalDirectory to true in the configuration_kvp table.
+ */
+public class LocalDirectoryWatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(LocalDirectoryWatcher.class);
+
+    private static final String WATCH_LOCAL_DIRECTORY = "WatchLocalDirectory";
+    private static final int SETTLE_SECONDS = 5;
+
+    private final Consumer<String> runNowCallback;
+    private final Map<WatchKey, String> watchedConfigurations = new ConcurrentHashMap<>();
+    private final Map<String, ScheduledFuture<?>> pendingRuns = new ConcurrentHashMap<>();
+    private WatchService watchService = null;
+    private ScheduledExecutorService settleExecutor = null;
+    private Thread watchThread = null;
+    private volatile boolean stopped = false;
+
+    public LocalDirectoryWatcher(Consumer<String> runNowCallback) {
+        this.runNowCallback = runNowCallback;
+    }
+
+    /**
+     * starts watching the directories of any configurations that have it enabled, doing nothing if none do. If a
+     * configuration's directory can't be watched, it's logged and that configuration just relies on its normal poll.
+     */
+    public void start(Configuration configuration) {
+
+        for (DbConfiguration dbConfiguration : configuration.getConfigurations()) {
+            if (!shouldWatch(dbConfiguration)) {
+                continue;
+            }
+
+            String configurationId = dbConfiguration.getConfigurationId();
+            String remotePath = dbConfiguration.getSftpConfiguration().getRemotePath();
+            File dir = new File(remotePath);
+            if (!dir.isDirectory()) {
+                LOG.warn("Not watching " + remotePath + " for " + configurationId + " as it's not a directory");
+                continue;
+            }
+
+            try {
+                if (watchService == null) {
+                    watchService = FileSystems.getDefault().newWatchService();
+                }
+                registerRecursive(dir.toPath(), configurationId);
+                LOG.info("Watching " + remotePath + " for new files for " + configurationId);
+
+            } catch (Exception ex) {
+                //stop watching anything that was registered before it failed, so we don't get events for part of it
+                unregister(configurationId);
+                LOG.error("Failed to watch " + remotePath + " for " + configurationId + " so will only be polled", ex);
+            }
+        }
+
+        if (watchService == null) {
+            return;
+        }
+
+        settleExecutor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "LocalDirectoryWatcherSettle"));
+
+        watchThread = new Thread(() -> watchLoop(), "LocalDirectoryWatcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    private static boolean shouldWatch(DbConfiguration dbConfiguration) {
+        DbConfigurationSftp sftpConfiguration = dbConfiguration.getSftpConfiguration();
+        if (sftpConfiguration == null
+                || !Strings.isNullOrEmpty(sftpConfiguration.getHostname())) {
+            return false;
+        }
+
+        //S3 can't be watched, so is only ever polled
+        String remotePath = sftpConfiguration.getRemotePath();
+        if (Strings.isNullOrEmpty(remotePath)
+                || remotePath.startsWith("S3")
+                || remotePath.startsWith("s3")) {
+            return false;
+        }
+
+        return Boolean.parseBoolean(dbConfiguration.getKvpValue(WATCH_LOCAL_DIRECTORY));
+    }
+
+    /**
+     * the file listing includes sub-directories, so we need to watch them too
+     */
+    private void registerRecursive(Path root, String configurationId) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+                watchedConfigurations.put(key, configurationId);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void unregister(String configurationId) {
+        Iterator<Map.Entry<WatchKey, String>> it = watchedConfigurations.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<WatchKey, String> entry = it.next();
+            if (entry.getValue().equals(configurationId)) {
+                entry.getKey().cancel();
+                it.remove();
+            }
+        }
+    }
+
+    private void watchLoop() {
+        while (!stopped) {
+
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                break;
+            }
+
+            String configurationId = watchedConfigurations.get(key);
+            if (configurationId == null) {
+                key.cancel();
+                continue;
+            }
+
+            Path dir = (Path)key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+
+                //if events were lost, we don't know what's arrived, but there's nothing more to do here, since the
+                //configuration is run (below) for any event, and that run's listing finds whatever it was
+                if (event.kind() == OVERFLOW) {
+                    LOG.debug("Watch events overflowed for " + configurationId);
+                    continue;
+                }
+
+                //start watching any new sub-directories too
+                Path child = dir.resolve((Path)event.context());
+                if (event.kind() == ENTRY_CREATE
+                        && Files.isDirectory(child)) {
+                    try {
+                        registerRecursive(child, configurationId);
+                    } catch (IOException ex) {
+                        LOG.error("Failed to watch new directory " + child + " for " + configurationId, ex);
+                    }
+                }
+            }
+
+            scheduleRun(configurationId);
+
+            //if the directory has gone, the key is no longer valid, and the next poll will show what's happened
+            if (!key.reset()) {
+                watchedConfigurations.remove(key);
+                LOG.warn("Stopped watching " + dir + " for " + configurationId + " as no longer accessible");
+            }
+        }
+    }
+
+    /**
+     * (re)starts the settle period for the configuration, so it's only run once nothing has changed for a few seconds
+     */
+    private void scheduleRun(String configurationId) {
+        ScheduledFuture<?> future = settleExecutor.schedule(() -> {
+            pendingRuns.remove(configurationId);
+            LOG.debug("New files detected for " + configurationId);
+            MetricsHelper.recordEvent(configurationId + ".local-directory-change-detected");
+            runNowCallback.accept(configurationId);
+        }, SETTLE_SECONDS, TimeUnit.SECONDS);
+
+        ScheduledFuture<?> previous = pendingRuns.put(configurationId, future);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    public void stop() {
+        this.stopped = true;
+
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ex) {
+                LOG.error("Error closing watch service", ex);
+            }
+        }
+
+        if (settleExecutor != null) {
+            settleExecutor.shutdownNow();
+        }
+    }
+}
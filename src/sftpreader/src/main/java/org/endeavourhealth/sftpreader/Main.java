@@ -53,6 +53,7 @@ import org.endeavourhealth.sftpreader.model.DataLayerI;
 import org.endeavourhealth.sftpreader.model.db.*;
 import org.endeavourhealth.sftpreader.model.exceptions.SftpReaderException;
 import org.endeavourhealth.sftpreader.sender.DpaCheck;
+import org.endeavourhealth.sftpreader.sender.MessagingApiHttpClient;
 import org.endeavourhealth.sftpreader.utilities.PgpUtil;
 import org.endeavourhealth.sftpreader.utilities.RemoteFile;
 import org.slf4j.Logger;
@@ -1622,10 +1623,6 @@ public class Main {
 
             InputStream inputStream = FileHelper.readFileFromSharedStorage(srcFilePath);
 
-            String privateKey = dbConfiguration.getPgpConfiguration().getPgpRecipientPrivateKey();
-            String privateKeyPassword = dbConfiguration.getPgpConfiguration().getPgpRecipientPrivateKeyPassword();
-            String publicKey = dbConfiguration.getPgpConfiguration().getPgpSenderPublicKey();
-
             //delete destination file and make sure directories exist
             File dstFile = new File(dstFilePath);
             if (dstFile.exists()) {
@@ -1639,10 +1636,13 @@ public class Main {
 
             try {
                 LOG.debug("Opened input stream");
-                PgpUtil.decryptAndVerify(inputStream, dstFilePath, privateKey, privateKeyPassword, publicKey);
+                PgpUtil.decryptAndVerify(inputStream, dstFilePath, dbConfiguration.getPgpConfiguration());
 
             } finally {
                 inputStream.close();
+
+                //the keys are cached by the decryption, so make sure they're not left in memory
+                PgpUtil.evictKeys(dbConfiguration.getPgpConfiguration());
             }
 
             LOG.info("Finished Decrypting " + srcFilePath + " to " + dstFilePath + " from configuration " + configurationId);
@@ -1980,6 +1980,8 @@ public class Main {
             if (sftpReaderTaskScheduler != null)
                 sftpReaderTaskScheduler.stop();
 
+            MessagingApiHttpClient.shutdown();
+
         } catch (Exception e) {
             printToErrorConsole("Exception occurred during shutdown", e);
             LOG.error("Exception occurred during shutdown", e);
@@ -17,6 +17,7 @@ public class SftpFile {
     private Long localFileSizeBytes = null;
     private Long decryptedFileSizeBytes = null;
     private Integer batchFileId = null;
+    private String contentHash = null;
 
     public SftpFile(RemoteFile remoteFile, SftpFilenameParser sftpFilenameParser, String fullLocalRootPath) {
         Validate.notNull(remoteFile, "remoteFile");
@@ -129,4 +130,12 @@ public class SftpFile {
     public void setBatchFileId(int batchFileId) {
         this.batchFileId = batchFileId;
     }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
 }
@@ -1,9 +1,15 @@
 package org.endeavourhealth.sftpreader;
 
+import com.google.common.io.BaseEncoding;
 import com.jcraft.jsch.JSchException;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
@@ -25,21 +31,38 @@ import org.endeavourhealth.sftpreader.model.DataLayerI;
 import org.endeavourhealth.sftpreader.model.db.*;
 import org.endeavourhealth.sftpreader.model.exceptions.SftpReaderException;
 import org.endeavourhealth.sftpreader.model.exceptions.SftpValidationException;
-import org.endeavourhealth.sftpreader.sender.DpaCheck;
+import org.endeavourhealth.sftpreader.sender.DpaCache;
 import org.endeavourhealth.sftpreader.sender.EdsSender;
 import org.endeavourhealth.sftpreader.sender.EdsSenderHttpErrorResponseException;
 import org.endeavourhealth.sftpreader.sender.EdsSenderResponse;
+import org.endeavourhealth.sftpreader.sources.BandwidthScheduler;
 import org.endeavourhealth.sftpreader.sources.Connection;
 import org.endeavourhealth.sftpreader.sources.ConnectionActivator;
 import org.endeavourhealth.sftpreader.sources.ConnectionDetails;
+import org.endeavourhealth.sftpreader.sources.UploadStabilityTracker;
+import org.endeavourhealth.sftpreader.utilities.BatchCheckpointHelper;
+import org.endeavourhealth.sftpreader.utilities.KnownFileIndex;
+import org.endeavourhealth.sftpreader.utilities.ParallelTaskRunner;
+import org.endeavourhealth.sftpreader.utilities.PgpUtil;
 import org.endeavourhealth.sftpreader.utilities.RemoteFile;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 //import org.endeavourhealth.common.config.ConfigManager;
@@ -47,10 +70,36 @@ import java.util.stream.Collectors;
 public class SftpReaderTask implements Runnable {
 
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(SftpReaderTask.class);
+    private static final String CONTENT_HASH_ALGORITHM = "SHA-256";
+    private static final long DUPLICATE_CONTENT_MIN_BYTES = 1024 * 1024; //smaller files (e.g. header-only CSVs) are often identical
+    private static final String PARTIAL_DOWNLOAD_DIR_SUFFIX = "-partial"; //kept apart from the temp dir, which is deleted after every run
+    private static final String PARTIAL_FILE_EXTENSION = ".partial";
+    private static final String PARTIAL_SOURCE_EXTENSION = ".source"; //size and modified date of the remote file a partial download is of
 
-    private static Map<Integer, String> notificationErrorrs = new HashMap<>();
+    private static Map<Integer, String> notificationErrorrs = new ConcurrentHashMap<>();
 
     private static final String SHOULD_PAUSE_NOTIFYING = "PauseNotify";
+    private static final String UNZIP_LOOKAHEAD_BATCHES = "UnzipLookaheadBatches";
+    private static final int DEFAULT_UNZIP_LOOKAHEAD_BATCHES = 1;
+    private static final String NOTIFY_ORGANISATION_THREADS = "NotifyOrganisationThreads";
+    private static final String KEEP_SFTP_SESSION_OPEN = "KeepSftpSessionOpen";
+    private static final String DOWNLOAD_WEIGHT = "DownloadWeight";
+    private static final String MAX_DOWNLOAD_KB_PER_SECOND = "MaxDownloadKbPerSecond";
+    private static final String DECRYPT_ON_DOWNLOAD = "DecryptOnDownload";
+    private static final String VERIFY_STORAGE_CONTENT_HASH = "VerifyStorageContentHash";
+    private static final String UPLOAD_QUIET_SECONDS = "UploadQuietSeconds";
+    private static final String REMOTE_ARCHIVE_MODE = "RemoteArchiveMode";
+    private static final String REMOTE_ARCHIVE_MODE_MOVE = "move";
+    private static final String REMOTE_ARCHIVE_MODE_DELETE = "delete";
+    private static final String REMOTE_ARCHIVE_DIRECTORY = "RemoteArchiveDirectory";
+    private static final String DEFAULT_REMOTE_ARCHIVE_DIRECTORY = "archive";
+    private static final String INCREMENTAL_LISTING = "IncrementalListing";
+    private static final String INCREMENTAL_LISTING_LOOKBACK_HOURS = "IncrementalListingLookbackHours";
+    private static final int DEFAULT_INCREMENTAL_LISTING_LOOKBACK_HOURS = 24;
+    private static final String FULL_LISTING_INTERVAL_HOURS = "FullListingIntervalHours";
+    private static final int DEFAULT_FULL_LISTING_INTERVAL_HOURS = 24;
+    private static final String INCREMENTAL_LISTING_PATTERN = "IncrementalListingPattern";
+    private static final int MAX_INCREMENTAL_LISTING_PATTERN_DAYS = 7;
 
 
     private Configuration configuration = null;
@@ -58,6 +107,10 @@ public class SftpReaderTask implements Runnable {
     private DbInstance dbInstanceConfiguration = null;
     private DbConfiguration dbConfiguration = null;
     private DataLayerI db = null;
+    private ThreadPoolExecutor unzipExecutor = null;
+    private Connection keptConnection = null; //connection kept open between runs, if enabled
+    private final UploadStabilityTracker uploadStabilityTracker = new UploadStabilityTracker();
+    private final Set<String> reportedMissingFiles = new HashSet<>(); //so we only send one Slack alert for each
 
     public SftpReaderTask(Configuration configuration, String configurationId) {
         this.configuration = configuration;
@@ -82,21 +135,38 @@ public class SftpReaderTask implements Runnable {
             lock = db.createConfigurationLock("SftpReader-" + configurationId);
 
             LOG.trace(">>>Downloading and decrypting files");
-            downloadNewFiles(attempt);
+            Set<String> deferredBatchIdentifiers = downloadNewFiles(attempt);
 
             LOG.trace(">>>Checking for unknown files");
             validateUnknownFiles();
 
             LOG.trace(">>>Sequencing batches");
-            List<Batch> incompleteBatches = sequenceBatches();
+            List<Batch> incompleteBatches = sequenceBatches(deferredBatchIdentifiers);
 
             Batch lastCompleteBatch = db.getLastCompleteBatch(dbConfiguration.getConfigurationId());
             int countBatchesCompleted = 0;
 
+            //unzipping/decrypting is done on a separate thread, running ahead of the rest of the processing,
+            //so the next batch(es) can be made ready while the current one is being split
+            unzipExecutor = createUnzipExecutor();
+            Deque<Future<?>> unzipFutures = new ArrayDeque<>();
+            int unzipLookahead = getUnzipLookaheadBatches();
+            int nextToUnzip = 0;
+
             for (Batch incompleteBatch: incompleteBatches) {
 
-                LOG.trace(">>>Unzipping/decrypting batch " + incompleteBatch.getBatchId());
-                unzipDecryptBatch(incompleteBatch);
+                while (nextToUnzip < incompleteBatches.size()
+                        && unzipFutures.size() <= unzipLookahead) {
+                    Batch batchToUnzip = incompleteBatches.get(nextToUnzip++);
+                    unzipFutures.add(unzipExecutor.submit(() -> {
+                        LOG.trace(">>>Unzipping/decrypting batch " + batchToUnzip.getBatchId());
+                        unzipDecryptBatch(batchToUnzip);
+                        return null;
+                    }));
+                }
+
+                LOG.trace(">>>Waiting for unzipping/decrypting of batch " + incompleteBatch.getBatchId());
+                waitForUnzip(unzipFutures.poll());
 
                 LOG.trace(">>>Validating batch " + incompleteBatch.getBatchId());
                 if (!validateBatch(incompleteBatch, lastCompleteBatch)) {
@@ -137,6 +207,15 @@ public class SftpReaderTask implements Runnable {
             handlePollingException(attempt, t);
 
         } finally {
+            //make sure nothing is still writing to the temp dir before we delete it
+            stopUnzipExecutor();
+
+            //the PGP keys are parsed once per run, and not kept in memory between runs
+            if (dbConfiguration != null
+                    && dbConfiguration.getPgpConfiguration() != null) {
+                PgpUtil.evictKeys(dbConfiguration.getPgpConfiguration());
+            }
+
             savePollingAttempt(attempt);
 
             //delete any previous temp files that were left around
@@ -312,7 +391,7 @@ public class SftpReaderTask implements Runnable {
         }
     }
 
-    private void deleteTempFiles(Batch batch) throws Exception {
+    private File getTempBatchDir(Batch batch) {
 
         String tempStoragePath = dbInstanceConfiguration.getEdsConfiguration().getTempDirectory();
 
@@ -322,7 +401,12 @@ public class SftpReaderTask implements Runnable {
         String tempDir = FilenameUtils.concat(tempStoragePath, configurationPath);
         tempDir = FilenameUtils.concat(tempDir, batchPath);
 
-        File f = new File(tempDir);
+        return new File(tempDir);
+    }
+
+    private void deleteTempFiles(Batch batch) throws Exception {
+
+        File f = getTempBatchDir(batch);
 
         //if we've not actually had to do anything with a batch's files, there won't be a temp dir for it
         if (f.exists()) {
@@ -335,6 +419,9 @@ public class SftpReaderTask implements Runnable {
         //mark as complete on the DB
         db.setBatchAsComplete(batch);
 
+        //the stage checkpoints are only needed to resume an incomplete batch
+        db.deleteBatchStageCheckpoints(batch.getBatchId(), null);
+
         //and tell Slack
         SlackNotifier.notifyCompleteBatch(dbConfiguration, batch);
 
@@ -348,10 +435,73 @@ public class SftpReaderTask implements Runnable {
         MetricsHelper.recordEvents(configurationId + ".completed-batch-size-mb", (int)(totalSizeInBytes / (1024*1024)));
     }
 
+    private ThreadPoolExecutor createUnzipExecutor() {
+        return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                r -> new Thread(r, configurationId + "-unzip"));
+    }
+
+    /**
+     * the number of batches that may be unzipped/decrypted ahead of the one being split, set in the configuration_kvp
+     * table. Each batch unzipped ahead uses extra temp space, so this can be set to zero for very large feeds.
+     */
+    private int getUnzipLookaheadBatches() {
+        return Math.max(0, dbConfiguration.getKvpInt(UNZIP_LOOKAHEAD_BATCHES, DEFAULT_UNZIP_LOOKAHEAD_BATCHES));
+    }
+
+    private static void waitForUnzip(Future<?> future) throws Exception {
+        try {
+            future.get();
+        } catch (ExecutionException ee) {
+            //throw the original exception, so it's reported the same as if it was done on this thread
+            Throwable cause = ee.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception)cause;
+            }
+            throw ee;
+        }
+    }
+
+    private void stopUnzipExecutor() {
+        if (unzipExecutor == null) {
+            return;
+        }
+
+        //anything not yet started is no longer needed, but let anything in progress finish, since
+        //interrupting it could leave a half-written file or be mistaken for a decryption failure
+        unzipExecutor.getQueue().clear();
+        unzipExecutor.shutdown();
+        try {
+            while (!unzipExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOG.info("Waiting for unzipping/decrypting to finish");
+            }
+        } catch (InterruptedException ie) {
+            LOG.error("Interrupted waiting for unzipping/decrypting to finish", ie);
+        }
+        unzipExecutor = null;
+    }
+
     private void unzipDecryptBatch(Batch batch) throws Exception {
 
+        //if a previous run got as far as unzipping this batch and was then killed, the files will still be in temp
+        BatchCheckpointHelper checkpoints = new BatchCheckpointHelper(db, batch.getBatchId());
+        File tempBatchDir = getTempBatchDir(batch);
+        if (checkpoints.isCompleteAndIntact(BatchCheckpointHelper.STAGE_UNZIPPED, tempBatchDir, false)) {
+            LOG.info("Batch " + batch.getBatchId() + " already unzipped/decrypted in " + tempBatchDir + " so will not be done again");
+            return;
+        }
+
+        //if enabled, make sure what's in permanent storage is what we downloaded before anything is read from it
+        if (shouldVerifyStorageContentHash()) {
+            verifyStorageContentHashes(batch);
+        }
+
+        //anything split from a previous unzip can't be trusted, so make sure the splitter starts again
+        checkpoints.clear(BatchCheckpointHelper.STAGE_SPLIT_FILE);
+
         SftpBatchUnzipperDecrypter unzipper = ImplementationActivator.createSftpUnzipperDecrypter(dbConfiguration);
         unzipper.unzipAndDecrypt(batch, dbInstanceConfiguration.getEdsConfiguration(), dbConfiguration, db);
+
+        checkpoints.setComplete(BatchCheckpointHelper.STAGE_UNZIPPED, tempBatchDir, false);
     }
 
     private void initialise() throws Exception {
@@ -382,23 +532,64 @@ public class SftpReaderTask implements Runnable {
         }
     }*/
 
-    private void downloadNewFiles(ConfigurationPollingAttempt attempt) throws SftpReaderException {
+    /**
+     * downloads any new files, returning the identifiers of any batches with files left until next time as they're
+     * still being uploaded
+     */
+    private Set<String> downloadNewFiles(ConfigurationPollingAttempt attempt) throws SftpReaderException {
         Connection connection = null;
+        boolean success = false;
 
         try {
-            connection = openSftpConnection(dbConfiguration.getSftpConfiguration());
+            connection = getSftpConnection(dbConfiguration.getSftpConfiguration());
 
             String remotePath = dbConfiguration.getSftpConfiguration().getRemotePath();
             LOG.trace("Connection opened - getting remote file list from " + remotePath);
 
-            List<RemoteFile> remoteFiles = getFileList(connection, remotePath);
+            //if enabled, only files modified around or after the latest one we've got need looking at, unless due a full check
+            RemoteListingWatermark watermark = null;
+            boolean fullListing = true;
+            if (useIncrementalListing()) {
+                watermark = db.getRemoteListingWatermark(configurationId);
+                fullListing = isFullListingDue(watermark);
+            }
+
+            List<RemoteFile> remoteFiles;
+            List<RemoteFile> candidateFiles;
+            Date listingCutoffDate = null;
+            if (fullListing) {
+                remoteFiles = getFileList(connection, remotePath);
+                candidateFiles = remoteFiles;
+
+            } else {
+                LocalDateTime listingCutoff = getListingCutoff(watermark);
+                listingCutoffDate = Date.from(listingCutoff.atZone(ZoneId.systemDefault()).toInstant());
+                remoteFiles = getIncrementalFileList(connection, remotePath, listingCutoff);
+                candidateFiles = filterByCutoff(remoteFiles, listingCutoff);
+                LOG.trace("Checking " + candidateFiles.size() + " of " + remoteFiles.size() + " files modified since " + listingCutoff + " (watermark " + watermark.getLastModified() + ")");
+            }
+            LocalDateTime latestDownloaded = null;
+
+            //if enabled, files are only downloaded once they've stopped changing between listings
+            long uploadQuietMs = getUploadQuietSeconds() * 1000L;
+            if (uploadQuietMs > 0) {
+                uploadStabilityTracker.update(candidateFiles);
+            }
 
             int countAlreadyProcessed = 0;
-            int countDownloaded = 0;
+            int countDeferred = 0;
+            Set<String> deferredBatchIdentifiers = new HashSet<>();
+            AtomicInteger countDownloaded = new AtomicInteger();
+            List<SftpFile> filesToDownload = new ArrayList<>();
+            List<SftpFile> downloadedFiles = new ArrayList<>(); //previously or in this run
 
             LOG.trace("Found " + remoteFiles.size() + " files in " + remotePath);
 
-            for (RemoteFile remoteFile : remoteFiles) {
+            //load what we've already downloaded in one go, so only new files need checking against the DB. For incremental
+            //runs, only files since the cut-off are being checked, so there's no need to load anything older
+            KnownFileIndex knownFileIndex = KnownFileIndex.load(db, configurationId, listingCutoffDate);
+
+            for (RemoteFile remoteFile : candidateFiles) {
                 SftpFile batchFile = instantiateSftpBatchFile(remoteFile);
 
                 if (!batchFile.isFileNeeded()) {
@@ -421,32 +612,461 @@ public class SftpReaderTask implements Runnable {
                     continue;
                 }
 
+                if (knownFileIndex.isDownloaded(batchFile)) {
+                    countAlreadyProcessed ++;
+                    downloadedFiles.add(batchFile);
+                    latestDownloaded = getLatest(latestDownloaded, remoteFile.getLastModified());
+                    continue;
+                }
+
+                if (uploadQuietMs > 0
+                        && !uploadStabilityTracker.isStable(remoteFile, uploadQuietMs)) {
+                    LOG.info("   File still changing, deferring: " + batchFile.getFilename());
+                    countDeferred ++;
+                    deferredBatchIdentifiers.add(batchFile.getBatchIdentifier());
+                    continue;
+                }
+
                 AddFileResult addFileResult = db.addFile(configurationId, batchFile);
 
                 if (addFileResult.isFileAlreadyDownloaded()) {
                     countAlreadyProcessed ++;
+                    downloadedFiles.add(batchFile);
+                    latestDownloaded = getLatest(latestDownloaded, remoteFile.getLastModified());
                     continue;
                 }
 
                 batchFile.setBatchFileId(addFileResult.getBatchFileId());
+                filesToDownload.add(batchFile);
+                latestDownloaded = getLatest(latestDownloaded, remoteFile.getLastModified());
+            }
 
-                downloadFile(connection, batchFile);
-                countDownloaded ++;
-                attempt.setFilesDownloaded(countDownloaded);
+            //the files are all added to the DB in order before downloading, and if any download fails we
+            //stop here, so batches are never sequenced until every file has been downloaded
+            int downloadThreads = getDownloadThreads();
+            if (downloadThreads > 1 && filesToDownload.size() > 1) {
+                LOG.trace("Downloading " + filesToDownload.size() + " files using " + downloadThreads + " threads");
+                connection.setDownloadConcurrency(downloadThreads);
             }
 
-            LOG.info("Completed processing " + remoteFiles.size() + " files, downloaded " + countDownloaded + " new ones, skipped " + countAlreadyProcessed + " as previously done");
+            final Connection downloadConnection = connection;
+            ParallelTaskRunner.runInParallel(configurationId + "-download", downloadThreads, filesToDownload, batchFile -> {
+                downloadFile(downloadConnection, batchFile);
+                synchronized (attempt) {
+                    attempt.setFilesDownloaded(countDownloaded.incrementAndGet());
+                }
+            });
+
+            LOG.info("Completed processing " + remoteFiles.size() + " files, downloaded " + countDownloaded.get() + " new ones, skipped " + countAlreadyProcessed + " as previously done, deferred " + countDeferred + " as still changing");
+            if (uploadQuietMs > 0) {
+                MetricsHelper.recordValue(configurationId + ".files-deferred-unstable", countDeferred);
+            }
+
+            //everything's been downloaded, so the watermark can be moved on
+            if (useIncrementalListing()) {
+                saveRemoteListingWatermark(watermark, latestDownloaded, fullListing);
+            }
+
+            //if enabled, move or delete everything we've got, so the supplier's directory only contains new files
+            String archiveMode = getRemoteArchiveMode(connection);
+            if (archiveMode != null) {
+                downloadedFiles.addAll(filesToDownload);
+                archiveRemoteFiles(connection, remotePath, downloadedFiles, archiveMode);
+                reconcileRemoteFiles(connection, remotePath, remoteFiles, archiveMode);
+            }
+
+            success = true;
+            return deferredBatchIdentifiers;
 
         } catch (Exception e) {
             throw new SftpReaderException("Exception occurred while downloading files - cannot continue or may process batches out of order", e);
 
         } finally {
+            //only keep the connection if everything worked, since we don't know what state it's in otherwise
+            if (success
+                    && shouldKeepSftpSessionOpen()) {
+                this.keptConnection = connection;
+                closeDownloadChannels(connection);
+            } else {
+                closeConnection(connection);
+            }
+        }
+    }
+
+    /**
+     * returns the connection kept open from the last run if it's still usable and for the same server, otherwise opens a new one
+     */
+    private Connection getSftpConnection(DbConfigurationSftp configurationSftp) throws Exception {
+
+        Connection connection = this.keptConnection;
+        this.keptConnection = null;
+
+        if (connection != null) {
+            ConnectionDetails details = connection.getConnectionDetails();
+            if (Objects.equals(details.getHostname(), configurationSftp.getHostname())
+                    && details.getPort() == configurationSftp.getPort()
+                    && Objects.equals(details.getUsername(), configurationSftp.getUsername())
+                    && connection.isUsable()) {
+
+                LOG.trace("Re-using connection from previous run");
+                MetricsHelper.recordEvent(configurationId + ".sftp-session-reused");
+                return connection;
+            }
+
+            LOG.info("Connection from previous run can't be used, so will reconnect");
+            MetricsHelper.recordEvent(configurationId + ".sftp-session-reconnected");
             closeConnection(connection);
         }
+
+        return openSftpConnection(configurationSftp);
+    }
+
+    private static void closeDownloadChannels(Connection connection) {
+        try {
+            connection.setDownloadConcurrency(1);
+        } catch (Exception ex) {
+            LOG.warn("Failed to close extra download channels", ex);
+        }
+    }
+
+    /**
+     * if set in the configuration_kvp table, the SFTP session is kept open between runs,
+     * which saves the key exchange and authentication each time we poll
+     */
+    private boolean shouldKeepSftpSessionOpen() {
+        return Boolean.parseBoolean(dbConfiguration.getKvpValue(KEEP_SFTP_SESSION_OPEN));
+    }
+
+    /**
+     * closes anything kept open between runs, e.g. if this instance is no longer running this configuration
+     */
+    public synchronized void releaseResources() {
+        if (keptConnection != null) {
+            LOG.trace("Closing connection kept from previous run");
+            closeConnection(keptConnection);
+            keptConnection = null;
+        }
+    }
+
+    /**
+     * if set in the configuration_kvp table, files older than the latest downloaded file are skipped without any
+     * parsing or DB checks, with a full check of every file done periodically in case any were missed
+     */
+    private boolean useIncrementalListing() {
+        return Boolean.parseBoolean(dbConfiguration.getKvpValue(INCREMENTAL_LISTING));
+    }
+
+    private boolean isFullListingDue(RemoteListingWatermark watermark) {
+        if (watermark == null) {
+            return true;
+        }
+
+        int intervalHours = dbConfiguration.getKvpInt(FULL_LISTING_INTERVAL_HOURS, DEFAULT_FULL_LISTING_INTERVAL_HOURS);
+        long msSinceFullListing = System.currentTimeMillis() - watermark.getLastFullListing().getTime();
+        return msSinceFullListing >= intervalHours * 60L * 60L * 1000L;
+    }
+
+    /**
+     * files can arrive with modified dates slightly older than ones we've already got (e.g. if uploaded out of order),
+     * so anything within the lookback period of the watermark is still checked
+     */
+    private LocalDateTime getListingCutoff(RemoteListingWatermark watermark) {
+        int lookbackHours = dbConfiguration.getKvpInt(INCREMENTAL_LISTING_LOOKBACK_HOURS, DEFAULT_INCREMENTAL_LISTING_LOOKBACK_HOURS);
+        return LocalDateTime.ofInstant(watermark.getLastModified().toInstant(), ZoneId.systemDefault()).minusHours(lookbackHours);
+    }
+
+    private static List<RemoteFile> filterByCutoff(List<RemoteFile> remoteFiles, LocalDateTime cutoff) {
+        List<RemoteFile> ret = new ArrayList<>();
+        for (RemoteFile remoteFile : remoteFiles) {
+            LocalDateTime lastModified = remoteFile.getLastModified();
+            if (lastModified == null
+                    || !lastModified.isBefore(cutoff)) {
+                ret.add(remoteFile);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * if a listing pattern is set, only the files named for each day since the cut-off are listed, otherwise
+     * it's a full listing, with the files before the cut-off filtered out afterwards
+     */
+    private List<RemoteFile> getIncrementalFileList(Connection connection, String remotePath, LocalDateTime cutoff) throws Exception {
+        List<String> patterns = getIncrementalListingPatterns(cutoff);
+        if (patterns == null) {
+            return getFileList(connection, remotePath);
+        }
+
+        //the same file may match more than one day's pattern
+        Map<String, RemoteFile> hmFiles = new LinkedHashMap<>();
+        for (String pattern : patterns) {
+            LOG.trace("Listing files matching " + pattern + " in " + remotePath);
+            for (RemoteFile remoteFile : connection.getFileList(remotePath, pattern)) {
+                hmFiles.put(remoteFile.getFullPath(), remoteFile);
+            }
+        }
+        return new ArrayList<>(hmFiles.values());
+    }
+
+    /**
+     * if set in the configuration_kvp table, the pattern is a wildcard for the file names, which can contain a
+     * date format in braces that's filled in for each day since the cut-off (e.g. *_{yyyyMMdd}*.gpg). Files are
+     * matched on the date in their name, so any that arrive later than that allows for will be picked up by the next
+     * full listing. Returns null if a full listing should be done instead.
+     */
+    private List<String> getIncrementalListingPatterns(LocalDateTime cutoff) {
+        String pattern = dbConfiguration.getKvpValue(INCREMENTAL_LISTING_PATTERN);
+        if (StringUtils.isEmpty(pattern)) {
+            return null;
+        }
+
+        int start = pattern.indexOf('{');
+        int end = pattern.indexOf('}', start + 1);
+        if (start == -1 || end == -1) {
+            return Collections.singletonList(pattern);
+        }
+
+        DateTimeFormatter dateFormat;
+        try {
+            dateFormat = DateTimeFormatter.ofPattern(pattern.substring(start + 1, end));
+        } catch (IllegalArgumentException ex) {
+            LOG.warn("Ignoring invalid " + INCREMENTAL_LISTING_PATTERN + " " + pattern + " for " + configurationId, ex);
+            return null;
+        }
+
+        //each pattern means another listing of the directory, so if it's been a while, a full listing is quicker
+        LocalDate today = LocalDate.now();
+        LocalDate day = cutoff.toLocalDate();
+        if (ChronoUnit.DAYS.between(day, today) >= MAX_INCREMENTAL_LISTING_PATTERN_DAYS) {
+            LOG.trace("Cut-off " + cutoff + " is too far back to list by " + INCREMENTAL_LISTING_PATTERN + " so doing a full listing");
+            return null;
+        }
+        if (day.isAfter(today)) {
+            day = today;
+        }
+
+        List<String> ret = new ArrayList<>();
+        for (; !day.isAfter(today); day = day.plusDays(1)) {
+            ret.add(pattern.substring(0, start) + day.format(dateFormat) + pattern.substring(end + 1));
+        }
+        return ret;
+    }
+
+    private void saveRemoteListingWatermark(RemoteListingWatermark watermark, LocalDateTime latestDownloaded, boolean fullListing) throws Exception {
+        if (watermark == null) {
+            //if we've got nothing yet, there's no watermark to set
+            if (latestDownloaded == null) {
+                return;
+            }
+            watermark = new RemoteListingWatermark();
+            watermark.setConfigurationId(configurationId);
+        }
+
+        if (latestDownloaded != null) {
+            Date latestDownloadedDate = Date.from(latestDownloaded.atZone(ZoneId.systemDefault()).toInstant());
+            if (watermark.getLastModified() == null
+                    || latestDownloadedDate.after(watermark.getLastModified())) {
+                watermark.setLastModified(latestDownloadedDate);
+            }
+        }
+
+        if (fullListing) {
+            watermark.setLastFullListing(new Date());
+        }
+
+        db.saveRemoteListingWatermark(watermark);
+    }
+
+    private static LocalDateTime getLatest(LocalDateTime current, LocalDateTime candidate) {
+        if (candidate == null) {
+            return current;
+        }
+        if (current == null
+                || candidate.isAfter(current)) {
+            return candidate;
+        }
+        return current;
+    }
+
+    /**
+     * moves (or deletes) remote files that have been downloaded, which is only done once they're marked as downloaded
+     * in the DB. Any that fail are just left, and will be tried again next time.
+     *
+     * Files are only deleted once their batch is complete, since until then a file can still be reset to be downloaded
+     * again (e.g. if it fails to decrypt). Moved files can be moved back if that happens, so are moved straight away.
+     */
+    private void archiveRemoteFiles(Connection connection, String remotePath, List<SftpFile> files, String archiveMode) {
+        String archivePath = getRemoteArchivePath(remotePath);
+        int countArchived = 0;
+
+        List<SftpFile> filesToArchive = files;
+        if (archiveMode.equals(REMOTE_ARCHIVE_MODE_DELETE)) {
+            try {
+                filesToArchive = filterToCompleteBatches(files);
+            } catch (Exception ex) {
+                LOG.error("Failed to find complete batches, so not deleting any remote files", ex);
+                return;
+            }
+        }
+
+        for (SftpFile file : filesToArchive) {
+            String filename = file.getFilename();
+            String filePath = concatRemotePath(remotePath, filename);
+            try {
+                if (archiveMode.equals(REMOTE_ARCHIVE_MODE_DELETE)) {
+                    connection.deleteRemoteFile(filePath);
+                } else {
+                    connection.moveFile(filePath, concatRemotePath(archivePath, filename));
+                }
+                countArchived ++;
+
+            } catch (Exception ex) {
+                LOG.error("Failed to " + archiveMode + " remote file " + filePath, ex);
+            }
+        }
+
+        LOG.info("Used " + archiveMode + " on " + countArchived + " of " + files.size() + " downloaded remote files");
+        MetricsHelper.recordValue(configurationId + ".remote-files-archived", countArchived);
+    }
+
+    private List<SftpFile> filterToCompleteBatches(List<SftpFile> files) throws Exception {
+        Set<String> incompleteBatchIdentifiers = new HashSet<>();
+        for (Batch batch : getIncompleteBatches()) {
+            incompleteBatchIdentifiers.add(batch.getBatchIdentifier());
+        }
+
+        List<SftpFile> ret = new ArrayList<>();
+        for (SftpFile file : files) {
+            if (!incompleteBatchIdentifiers.contains(file.getBatchIdentifier())) {
+                ret.add(file);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * reports any files that haven't been downloaded (e.g. that have been reset to be downloaded again) but are no
+     * longer where we expect them. In move mode, these are moved back from the archive if found there so the next run
+     * downloads them. Failures are only logged, since all downloads have been done by this point.
+     */
+    private void reconcileRemoteFiles(Connection connection, String remotePath, List<RemoteFile> remoteFiles, String archiveMode) {
+        try {
+            Set<String> notDownloaded = db.getNotDownloadedFilenames(configurationId);
+            if (notDownloaded.isEmpty()) {
+                return;
+            }
+
+            Set<String> listed = new HashSet<>();
+            for (RemoteFile remoteFile : remoteFiles) {
+                listed.add(remoteFile.getFilename());
+            }
+
+            String archivePath = getRemoteArchivePath(remotePath);
+            Set<String> archived = new HashSet<>();
+            if (archiveMode.equals(REMOTE_ARCHIVE_MODE_MOVE)) {
+                try {
+                    for (RemoteFile remoteFile : connection.getFileList(archivePath)) {
+                        archived.add(remoteFile.getFilename());
+                    }
+                } catch (Exception ex) {
+                    LOG.trace("Failed to list " + archivePath + " so assuming empty", ex);
+                }
+            }
+
+            List<String> missing = new ArrayList<>();
+            for (String filename : notDownloaded) {
+                if (listed.contains(filename)) {
+                    continue;
+                }
+
+                if (archived.contains(filename)) {
+                    LOG.info("Moving " + filename + " back from " + archivePath + " as it needs downloading again");
+                    connection.moveFile(concatRemotePath(archivePath, filename), concatRemotePath(remotePath, filename));
+                } else {
+                    missing.add(filename);
+                }
+            }
+
+            MetricsHelper.recordValue(configurationId + ".remote-files-missing", missing.size());
+            if (missing.isEmpty()) {
+                return;
+            }
+
+            LOG.warn(missing.size() + " files for " + configurationId + " need downloading but can't be found on the server: " + String.join(", ", missing));
+
+            List<String> newlyMissing = new ArrayList<>();
+            for (String filename : missing) {
+                if (reportedMissingFiles.add(filename)) {
+                    newlyMissing.add(filename);
+                }
+            }
+            if (!newlyMissing.isEmpty()) {
+                String message = "Files for " + configurationId + " need downloading but are missing from the server: " + String.join(", ", newlyMissing);
+                SlackHelper.sendSlackMessage(SlackHelper.Channel.SftpReaderAlerts, message);
+            }
+
+        } catch (Exception ex) {
+            LOG.error("Failed to reconcile remote files for " + configurationId, ex);
+        }
+    }
+
+    /**
+     * if set in the configuration_kvp table to move or delete, remote files are moved to an archive directory or deleted
+     * once downloaded, if the connection supports it
+     */
+    private String getRemoteArchiveMode(Connection connection) {
+        String s = dbConfiguration.getKvpValue(REMOTE_ARCHIVE_MODE);
+        if (s == null) {
+            return null;
+        }
+
+        if (!s.equals(REMOTE_ARCHIVE_MODE_MOVE)
+                && !s.equals(REMOTE_ARCHIVE_MODE_DELETE)) {
+            LOG.warn("Ignoring unknown " + REMOTE_ARCHIVE_MODE + " " + s);
+            return null;
+        }
+
+        if (!connection.supportsRemoteArchive()) {
+            LOG.warn("Ignoring " + REMOTE_ARCHIVE_MODE + " as not supported by " + connection.getClass().getSimpleName());
+            return null;
+        }
+
+        return s;
+    }
+
+    private String getRemoteArchivePath(String remotePath) {
+        String archiveDirectory = dbConfiguration.getKvpValue(REMOTE_ARCHIVE_DIRECTORY);
+        if (archiveDirectory == null) {
+            archiveDirectory = DEFAULT_REMOTE_ARCHIVE_DIRECTORY;
+        }
+        return concatRemotePath(remotePath, archiveDirectory);
+    }
+
+    /**
+     * remote paths always use forward slashes, whatever we're running on
+     */
+    private static String concatRemotePath(String dir, String name) {
+        return StringUtils.removeEnd(dir, "/") + "/" + name;
+    }
+
+    /**
+     * how long, set in the configuration_kvp table, a file's size and modified date must be unchanged before it's
+     * downloaded (zero = download as soon as it's seen)
+     */
+    private int getUploadQuietSeconds() {
+        return Math.max(0, dbConfiguration.getKvpInt(UPLOAD_QUIET_SECONDS, 0));
+    }
+
+    private int getDownloadThreads() {
+        Integer downloadThreads = dbConfiguration.getSftpConfiguration().getDownloadThreads();
+        if (downloadThreads == null) {
+            return 1;
+        }
+        return Math.max(1, downloadThreads.intValue());
     }
 
     private Connection openSftpConnection(DbConfigurationSftp configurationSftp) throws Exception, JSchException, IOException {
-        ConnectionDetails connectionDetails = getSftpConnectionDetails(configurationSftp);
+        ConnectionDetails connectionDetails = getSftpConnectionDetails(configurationSftp, shouldKeepSftpSessionOpen());
 
         String hostname = connectionDetails.getHostname();
         String port = Integer.toString(connectionDetails.getPort());
@@ -455,12 +1075,14 @@ public class SftpReaderTask implements Runnable {
 
         LOG.info("Opening " + connection.getClass().getName() + " to " + hostname + " on port " + port + " with user " + username);
         connection.open();
+        MetricsHelper.recordEvent(configurationId + ".sftp-session-opened");
 
         return connection;
     }
 
-    private static ConnectionDetails getSftpConnectionDetails(DbConfigurationSftp configurationSftp) {
+    private static ConnectionDetails getSftpConnectionDetails(DbConfigurationSftp configurationSftp, boolean keepAlive) {
         return new ConnectionDetails()
+                .setKeepAlive(keepAlive)
                 .setHostname(configurationSftp.getHostname())
                 .setPort(configurationSftp.getPort())
                 .setUsername(configurationSftp.getUsername())
@@ -480,56 +1102,324 @@ public class SftpReaderTask implements Runnable {
 
     /**
      * temporarily changed to download directly as a .GPG file rather than a .download file
+     *
+     * if permanent storage is a normal file system, the file is downloaded straight into it, otherwise (i.e. S3, which needs
+     * to know the length up front) it's downloaded to a partial download directory alongside the temp directory and then copied.
+     * Either way, the size and SHA-256 hash are worked out as the file is downloaded, rather than reading it back afterwards.
+     *
+     * The file is downloaded with a .partial extension, and only renamed once we know we've got all of it, so nothing
+     * reading from storage sees a half-written file, and a resumed download only ever carries on from our own partial file.
      */
     private void downloadFile(Connection connection, SftpFile sftpFile) throws Exception {
 
         String fileName = sftpFile.getFilename();
-        String tempRootDir = dbInstanceConfiguration.getEdsConfiguration().getTempDirectory();
         String localRootDir = sftpFile.getLocalPath();
-        String tempDir = FilenameUtils.concat(tempRootDir, localRootDir);
 
-        File downloadDestination = new File(tempDir, fileName);
-        LOG.info("Downloading file to: " + downloadDestination);
+        String sharedStoragePath = dbInstanceConfiguration.getEdsConfiguration().getSharedStoragePath();
+        String storageDestinationPath = FilenameUtils.concat(sharedStoragePath, localRootDir);
+        storageDestinationPath = FilenameUtils.concat(storageDestinationPath, fileName);
+
+        boolean downloadToStorage = canWriteDirectlyToStorage(sharedStoragePath);
+
+        File downloadDestination;
+        if (downloadToStorage) {
+            downloadDestination = new File(storageDestinationPath);
+        } else {
+            downloadDestination = new File(getPartialDownloadDir(sftpFile), fileName);
+        }
+        File partialFile = new File(downloadDestination.getPath() + PARTIAL_FILE_EXTENSION);
+        LOG.info("Downloading file to: " + partialFile);
 
         //ensure the download directory exists
-        File downloadDestinationDir = downloadDestination.getParentFile();
+        File downloadDestinationDir = partialFile.getParentFile();
         if (!downloadDestinationDir.exists()) {
             if (!downloadDestinationDir.mkdirs()) {
                 throw new Exception("Failed to create directory" + downloadDestinationDir);
             }
         }
 
-        //delete any previously downloaded file
-        if (downloadDestination.exists()) {
-            if (!downloadDestination.delete()) {
-                throw new IOException("Could not delete existing temporary download file " + downloadDestination);
+        //if a previous download failed part way, the partial file is left so we can resume from where it got to, but
+        //only if the remote file has the same size and modified date as when it was started, since if the supplier has
+        //uploaded it again, appending the new content to the old would give a corrupt file of the right length
+        long remoteFileLen = sftpFile.getRemoteFileSizeInBytes();
+        File partialSourceFile = new File(partialFile.getPath() + PARTIAL_SOURCE_EXTENSION);
+        String remoteSource = remoteFileLen + " " + sftpFile.getRemoteLastModifiedDate();
+        long resumeFrom = 0;
+        if (partialFile.exists()) {
+            String partialSource = null;
+            if (partialSourceFile.exists()) {
+                partialSource = FileUtils.readFileToString(partialSourceFile, StandardCharsets.UTF_8);
+            }
+
+            if (!remoteSource.equals(partialSource)) {
+                LOG.info("Remote file has changed since partial download started (" + partialSource + " vs " + remoteSource + ") so will download again");
+                if (!partialFile.delete()) {
+                    throw new IOException("Could not delete existing partial download file " + partialFile);
+                }
+            } else {
+                resumeFrom = partialFile.length();
+                if (remoteFileLen > 0
+                        && resumeFrom > remoteFileLen) {
+                    LOG.info("Existing partial download is larger than remote file (" + resumeFrom + " vs " + remoteFileLen + ") so will download again");
+                    if (!partialFile.delete()) {
+                        throw new IOException("Could not delete existing partial download file " + partialFile);
+                    }
+                    resumeFrom = 0;
+                }
+            }
+        }
+
+        //record what we're downloading, so a later attempt knows if it can resume
+        if (resumeFrom == 0) {
+            FileUtils.writeStringToFile(partialSourceFile, remoteSource, StandardCharsets.UTF_8);
+        }
+
+        //any part we already have needs to go into the hash first
+        MessageDigest digest = MessageDigest.getInstance(CONTENT_HASH_ALGORITHM);
+        if (resumeFrom > 0) {
+            try (InputStream existingStream = new DigestInputStream(new FileInputStream(partialFile), digest)) {
+                IOUtils.copyLarge(existingStream, NullOutputStream.NULL_OUTPUT_STREAM);
+            }
+        }
+
+        //if enabled, PGP files are decrypted as they come in, rather than read back from storage to decrypt later on
+        File decryptedFile = null;
+        if (resumeFrom == 0
+                && shouldDecryptOnDownload(fileName)) {
+            String tempDir = FilenameUtils.concat(dbInstanceConfiguration.getEdsConfiguration().getTempDirectory(), localRootDir);
+            decryptedFile = new File(tempDir, StringUtils.removeEnd(fileName, dbConfiguration.getPgpFileExtensionFilter()));
+            if (!decryptedFile.getParentFile().exists()
+                    && !decryptedFile.getParentFile().mkdirs()) {
+                throw new Exception("Failed to create directory" + decryptedFile.getParentFile());
             }
         }
 
-        //download the file to our temp directory
         String remoteFilePath = sftpFile.getRemoteFilePath();
-        InputStream inputStream = connection.getFile(remoteFilePath);
-        Files.copy(inputStream, downloadDestination.toPath());
+        long bytesDownloaded = 0;
+        if (resumeFrom > 0
+                && resumeFrom == remoteFileLen) {
+            LOG.info("Previous download of " + fileName + " completed, so will not download again");
 
-        long fileLen = downloadDestination.length();
+        } else {
+            if (resumeFrom > 0) {
+                LOG.info("Resuming download of " + fileName + " from " + resumeFrom + " of " + remoteFileLen + " bytes");
+                MetricsHelper.recordEvent(configurationId + ".file-download-resumed");
+            }
 
-        //move the file to our permanent storage
-        String sharedStoragePath = dbInstanceConfiguration.getEdsConfiguration().getSharedStoragePath();
-        String storageDestinationPath = FilenameUtils.concat(sharedStoragePath, localRootDir);
-        storageDestinationPath = FilenameUtils.concat(storageDestinationPath, fileName);
+            //the download is throttled to its share of the instance's bandwidth (if limited). The settings are read before
+            //the remote stream is opened, and the stream is opened as a resource, so nothing can leave it (and its channel) open
+            int downloadWeight = getDownloadWeight();
+            Long maxDownloadBytesPerSecond = getMaxDownloadBytesPerSecond();
+
+            try (InputStream remoteStream = connection.getFile(remoteFilePath, resumeFrom);
+                 InputStream inputStream = new DigestInputStream(BandwidthScheduler.instance().throttle(remoteStream, configurationId, downloadWeight, maxDownloadBytesPerSecond, remoteFileLen - resumeFrom), digest);
+                 OutputStream outputStream = new FileOutputStream(partialFile, resumeFrom > 0)) {
+
+                if (decryptedFile != null) {
+                    bytesDownloaded = downloadAndDecrypt(inputStream, outputStream, decryptedFile);
+                } else {
+                    bytesDownloaded = IOUtils.copyLarge(inputStream, outputStream);
+                }
+            }
+        }
+
+        long fileLen = resumeFrom + bytesDownloaded;
+
+        //if the connection dropped, we may have been given a short stream without an error, so check we've got it all,
+        //leaving the partial file so the next attempt resumes from here
+        if (remoteFileLen > 0
+                && fileLen != remoteFileLen) {
+            throw new IOException("Downloaded " + fileLen + " bytes of " + fileName + " but expected " + remoteFileLen);
+        }
+
+        //only once we know we've got the whole file can the decrypted file be used
+        if (decryptedFile != null) {
+            File decryptedPartialFile = getDecryptedPartialFile(decryptedFile);
+            if (decryptedPartialFile.exists()) {
+                Files.move(decryptedPartialFile.toPath(), decryptedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                MetricsHelper.recordEvent(configurationId + ".file-decrypted-on-download");
+            }
+        }
+
+        String contentHash = BaseEncoding.base16().lowerCase().encode(digest.digest());
+        LOG.trace("Downloaded " + fileName + " with " + fileLen + " bytes and hash " + contentHash);
 
-        LOG.info("Writing to permanent storage: " + storageDestinationPath);
-        FileHelper.writeFileToSharedStorage(storageDestinationPath, downloadDestination);
+        if (downloadToStorage) {
+            //replace any earlier copy in one go, so it's never seen half-written
+            moveAtomically(partialFile, downloadDestination);
 
-        //and delete from our temporary storage
-        downloadDestination.delete();
+        } else {
+            //move the file to our permanent storage
+            LOG.info("Writing to permanent storage: " + storageDestinationPath);
+            FileHelper.writeFileToSharedStorage(storageDestinationPath, partialFile);
+
+            //and delete from our temporary storage
+            partialFile.delete();
+        }
+        partialSourceFile.delete();
 
         //update the DB to confirm we've downloaded it
         sftpFile.setLocalFileSizeBytes(fileLen);
+        sftpFile.setContentHash(contentHash);
         db.setFileAsDownloaded(sftpFile.getBatchFileId(), true);
 
+        //then save the hash so the permanent copy can be verified without re-downloading, but since the file itself
+        //is fine, failing to save it or check it against previous files shouldn't fail the download
+        try {
+            db.setFileContentHash(sftpFile.getBatchFileId(), contentHash);
+            checkForDuplicateContent(sftpFile, fileLen);
+        } catch (Exception ex) {
+            LOG.error("Failed to save content hash or check for duplicate content for " + fileName, ex);
+        }
+
         MetricsHelper.recordEvent(configurationId + ".file-downloaded");
     }
+
+    /**
+     * copies the downloaded file to the output stream while decrypting it at the same time, so the download
+     * and decryption overlap and the file doesn't need reading back from storage. The decrypted file is written
+     * with a .partial extension, so the unzipper only picks it up once the download is known to be complete. If the
+     * decryption fails, the download still carries on and the file is decrypted from storage as normal.
+     */
+    private long downloadAndDecrypt(InputStream inputStream, OutputStream outputStream, File decryptedFile) throws Exception {
+
+        CountingInputStream countingStream = new CountingInputStream(new TeeInputStream(inputStream, outputStream));
+        File decryptedPartialFile = getDecryptedPartialFile(decryptedFile);
+
+        try {
+            //the decryption closes its input when done, but we need to keep reading in case there's anything after the PGP data
+            PgpUtil.decryptAndVerify(new CloseShieldInputStream(countingStream), decryptedPartialFile.getPath(), dbConfiguration.getPgpConfiguration());
+
+        } catch (Exception ex) {
+            LOG.warn("Failed to decrypt " + decryptedFile.getName() + " during download, so will be decrypted from storage later", ex);
+            decryptedPartialFile.delete();
+        }
+
+        //the decrypted file is only complete if the file we've downloaded is, so make sure we've read everything
+        IOUtils.copyLarge(countingStream, NullOutputStream.NULL_OUTPUT_STREAM);
+
+        return countingStream.getByteCount();
+    }
+
+    /**
+     * partially downloaded files need to survive a failed run so the next one can resume them, so can't go in the
+     * configuration's temp directory, which is deleted at the end of every run
+     */
+    private File getPartialDownloadDir(SftpFile sftpFile) {
+        String tempRootDir = dbInstanceConfiguration.getEdsConfiguration().getTempDirectory();
+        String configurationDir = FilenameUtils.normalizeNoEndSeparator(dbConfiguration.getLocalRootPath()) + PARTIAL_DOWNLOAD_DIR_SUFFIX;
+        String partialDir = FilenameUtils.concat(tempRootDir, configurationDir);
+        partialDir = FilenameUtils.concat(partialDir, sftpFile.getLocalRelativePath());
+        return new File(partialDir);
+    }
+
+    private static File getDecryptedPartialFile(File decryptedFile) {
+        return new File(decryptedFile.getPath() + PARTIAL_FILE_EXTENSION);
+    }
+
+    /**
+     * renames the file over the destination, falling back to a normal replace if the file system can't do it atomically
+     */
+    private static void moveAtomically(File src, File dst) throws IOException {
+        try {
+            Files.move(src.toPath(), dst.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * if set in the configuration_kvp table, the permanent copy of each file in a batch is checked against the hash
+     * saved when it was downloaded, before the batch is unzipped. This means reading every file again, so is optional.
+     */
+    private boolean shouldVerifyStorageContentHash() {
+        return Boolean.parseBoolean(dbConfiguration.getKvpValue(VERIFY_STORAGE_CONTENT_HASH));
+    }
+
+    /**
+     * fails the batch if any file in permanent storage doesn't have the content it was downloaded with (e.g. it's been
+     * truncated or overwritten), so it's never unzipped and processed. Files downloaded before the hash was saved are skipped.
+     */
+    private void verifyStorageContentHashes(Batch batch) throws Exception {
+        Map<String, String> contentHashes = db.getFileContentHashes(batch.getBatchId());
+
+        String storageDir = FilenameUtils.concat(dbInstanceConfiguration.getEdsConfiguration().getSharedStoragePath(), dbConfiguration.getLocalRootPath());
+        storageDir = FilenameUtils.concat(storageDir, batch.getLocalRelativePath());
+
+        for (Map.Entry<String, String> entry : contentHashes.entrySet()) {
+            String storagePath = FilenameUtils.concat(storageDir, entry.getKey());
+
+            MessageDigest digest = MessageDigest.getInstance(CONTENT_HASH_ALGORITHM);
+            try (InputStream inputStream = new DigestInputStream(FileHelper.readFileFromSharedStorage(storagePath), digest)) {
+                IOUtils.copyLarge(inputStream, NullOutputStream.NULL_OUTPUT_STREAM);
+            }
+
+            String contentHash = BaseEncoding.base16().lowerCase().encode(digest.digest());
+            if (!contentHash.equals(entry.getValue())) {
+                MetricsHelper.recordEvent(configurationId + ".storage-content-hash-mismatch");
+                throw new SftpValidationException("Permanent copy of " + storagePath + " has hash " + contentHash + " but was downloaded with hash " + entry.getValue());
+            }
+        }
+
+        LOG.trace("Verified content hash of " + contentHashes.size() + " files in permanent storage for batch " + batch.getBatchId());
+    }
+
+    /**
+     * if set in the configuration_kvp table, files matching the PGP file extension filter are decrypted as they're downloaded
+     */
+    private boolean shouldDecryptOnDownload(String fileName) {
+        String pgpFileExtensionFilter = dbConfiguration.getPgpFileExtensionFilter();
+        return Boolean.parseBoolean(dbConfiguration.getKvpValue(DECRYPT_ON_DOWNLOAD))
+                && !StringUtils.isEmpty(pgpFileExtensionFilter)
+                && fileName.endsWith(pgpFileExtensionFilter);
+    }
+
+    /**
+     * suppliers sometimes send exactly the same file again under a different name, which we want to know about
+     * since it'll result in the same data being processed twice
+     */
+    private void checkForDuplicateContent(SftpFile sftpFile, long fileLen) throws Exception {
+        if (fileLen < DUPLICATE_CONTENT_MIN_BYTES) {
+            return;
+        }
+
+        List<String> duplicates = db.findFilesWithContentHash(configurationId, sftpFile.getContentHash(), sftpFile.getBatchFileId());
+        if (duplicates.isEmpty()) {
+            return;
+        }
+
+        String message = "Downloaded " + sftpFile.getFilename() + " for " + configurationId + " has the same content as previously downloaded " + String.join(", ", duplicates);
+        LOG.warn(message);
+        SlackHelper.sendSlackMessage(SlackHelper.Channel.SftpReaderAlerts, message);
+        MetricsHelper.recordEvent(configurationId + ".duplicate-content-downloaded");
+    }
+
+    /**
+     * the configuration's share of the download bandwidth, relative to the others, set in the configuration_kvp table
+     */
+    private int getDownloadWeight() {
+        return Math.max(1, dbConfiguration.getKvpInt(DOWNLOAD_WEIGHT, 1));
+    }
+
+    /**
+     * the most download bandwidth the configuration may use, set in the configuration_kvp table (null = no limit)
+     */
+    private Long getMaxDownloadBytesPerSecond() {
+        int kbPerSecond = dbConfiguration.getKvpInt(MAX_DOWNLOAD_KB_PER_SECOND, 0);
+        if (kbPerSecond <= 0) {
+            return null;
+        }
+        return new Long(kbPerSecond * 1024L);
+    }
+
+    /**
+     * S3 needs the length of the content before it's written, so we can't stream into it
+     */
+    private static boolean canWriteDirectlyToStorage(String sharedStoragePath) {
+        return !sharedStoragePath.startsWith("S3")
+                && !sharedStoragePath.startsWith("s3");
+    }
+
     /*private void downloadFile(Connection connection, SftpFile batchFile) throws Exception {
         String localFilePath = batchFile.getLocalFilePath();
         LOG.info("Downloading file to: " + localFilePath);
@@ -641,7 +1531,11 @@ public class SftpReaderTask implements Runnable {
         sftpBatchValidator.validateBatchPostSplit(incompleteBatch, lastCompleteBatch, dbInstanceConfiguration.getEdsConfiguration(), dbConfiguration, db);
     }
 
-    private List<Batch> sequenceBatches() throws Exception {
+    /**
+     * if a file is still being uploaded, its batch may look complete without it, so that batch isn't sequenced until
+     * it's been downloaded. Neither is anything after it, since batches must be completed in order.
+     */
+    private List<Batch> sequenceBatches(Set<String> deferredBatchIdentifiers) throws Exception {
         LOG.trace(" Sequencing batches");
 
         List<Batch> incompleteBatches = getIncompleteBatches();
@@ -686,20 +1580,35 @@ public class SftpReaderTask implements Runnable {
             }
         }
 
-        //save the newly assigned sequence numbers
+        //save the newly assigned sequence numbers, up to any batch still being uploaded
+        List<Batch> ret = new ArrayList<>();
         for (Batch b : hmSortedBatchSequence.keySet()) {
+            if (deferredBatchIdentifiers.contains(b.getBatchIdentifier())) {
+                LOG.info("  Not sequencing batch " + b.getBatchIdentifier() + " or any after it, as it has file(s) still being uploaded");
+                break;
+            }
+
             Integer seq = hmBatchSequence.get(b);
             db.setBatchSequenceNumber(b, seq);
             LOG.debug("  Batch " + b.getBatchId() + ", from " + b.getBatchIdentifier() + " sequenced as " + seq);
+            ret.add(b);
         }
 
         LOG.trace(" Completed batch sequencing");
 
-        return new ArrayList<>(hmSortedBatchSequence.keySet());
+        return ret;
     }
 
     private void splitBatch(Batch batch, Batch lastCompleteBatch) throws Exception {
 
+        //if a previous run split this batch and saved all the splits, but was killed before completing the
+        //batch, then the splits on the DB are good and we don't need to do it again
+        BatchCheckpointHelper checkpoints = new BatchCheckpointHelper(db, batch.getBatchId());
+        if (checkpoints.isComplete(BatchCheckpointHelper.STAGE_BULK_DETECTED)) {
+            LOG.info("Batch " + batch.getBatchId() + " already split and saved so will not be done again");
+            return;
+        }
+
         //delete any pre-existing splits for this batch
         db.deleteBatchSplits(batch);
 
@@ -711,6 +1620,7 @@ public class SftpReaderTask implements Runnable {
         String configurationId = dbConfiguration.getConfigurationId();
         Set<String> odsCodesToIgnore = SftpBatchSplitter.findOdsCodesThatShouldBeIgnored(configurationId);
 
+        List<BatchSplit> splitBatchesToSave = new ArrayList<>();
         for (BatchSplit splitBatch: splitBatches) {
 
             //if this split is for an ODS code that we know we want to ignore, then just skip adding it to the DB
@@ -720,6 +1630,13 @@ public class SftpReaderTask implements Runnable {
                 continue;
             }
 
+            splitBatchesToSave.add(splitBatch);
+        }
+
+        //each organisation is independent now the batch is split, so these can be done in parallel
+        int threads = SftpBatchSplitter.getOrganisationThreads(dbConfiguration);
+        ParallelTaskRunner.runInParallel(configurationId + "-split", threads, splitBatchesToSave, splitBatch -> {
+
             splitBatch.setConfigurationId(configurationId);
 
             //work out if the data for this organisation is a bulk or not
@@ -732,7 +1649,9 @@ public class SftpReaderTask implements Runnable {
 
             //save to the DB
             db.addBatchSplit(splitBatch);
-        }
+        });
+
+        checkpoints.setComplete(BatchCheckpointHelper.STAGE_BULK_DETECTED);
     }
 
     private static int getNextSequenceNumber(Batch lastCompleteBatch) {
@@ -810,11 +1729,13 @@ public class SftpReaderTask implements Runnable {
             list.add(batchSplit);
         }
 
-        //then attempt to notify EDS for each organisation
-        int countSuccess = 0;
-        int countFail = 0;
+        //then attempt to notify EDS for each organisation. Each organisation's splits must be notified in order, but
+        //different organisations are independent so can be notified at the same time
+        AtomicInteger countSuccess = new AtomicInteger();
+        AtomicInteger countFail = new AtomicInteger();
 
-        for (String organisationId: organisationIds) {
+        int threads = getNotifyOrganisationThreads();
+        ParallelTaskRunner.runInParallel(configurationId + "-notify", threads, organisationIds, organisationId -> {
             List<BatchSplit> batchSplits = hmByOrg.get(organisationId);
 
             try {
@@ -825,17 +1746,26 @@ public class SftpReaderTask implements Runnable {
 
                     LOG.trace("Notifying EDS for batch split: {}", batchSplit.getBatchSplitId());
                     notify(batchSplit);
-                    countSuccess ++;
-                    attempt.setBatchSplitsNotifiedOk(countSuccess);
+                    synchronized (attempt) {
+                        attempt.setBatchSplitsNotifiedOk(countSuccess.incrementAndGet());
+                    }
                 }
             } catch (Exception e) {
-                countFail ++;
-                attempt.setBatchSplitsNotifiedFailure(countFail);
+                synchronized (attempt) {
+                    attempt.setBatchSplitsNotifiedFailure(countFail.incrementAndGet());
+                }
                 LOG.error("Error occurred notifying EDS for batch split", e);
             }
-        }
+        });
 
-        LOG.info("Notified EDS successfully {} times and failed {}", countSuccess, countFail);
+        LOG.info("Notified EDS successfully {} times and failed {}", countSuccess.get(), countFail.get());
+    }
+
+    /**
+     * the number of organisations that may be notified at once, from the configuration_kvp table
+     */
+    private int getNotifyOrganisationThreads() {
+        return Math.max(1, dbConfiguration.getKvpInt(NOTIFY_ORGANISATION_THREADS, 1));
     }
 
 
@@ -855,7 +1785,8 @@ public class SftpReaderTask implements Runnable {
 
         try {
             //SD-184 before we start throwing data at DDS we should check if we have a DPA, otherwise it'll be rejected anyway
-            boolean hasDpa = DpaCheck.checkForDpa(organisationId, useKeycloak, edsUrl);
+            //the result is cached, since an organisation may have many batch splits to notify in one go
+            boolean hasDpa = DpaCache.instance().checkForDpa(organisationId, useKeycloak, edsUrl);
             if (!hasDpa) {
                 throw new Exception("Skipping posting to Messaging API because no DPA exists");
             }
@@ -905,6 +1836,12 @@ public class SftpReaderTask implements Runnable {
             if (ex instanceof EdsSenderHttpErrorResponseException) {
                 EdsSenderResponse edsSenderResponse = ((EdsSenderHttpErrorResponseException)ex).getEdsSenderResponse();
                 inboundMessage = edsSenderResponse.getStatusLine() + "\r\n" + edsSenderResponse.getResponseBody();
+
+                //a 4xx may mean the DPA has been removed since we cached it, so make sure we check it again next time
+                int statusCode = edsSenderResponse.getHttpStatusCode();
+                if (statusCode >= 400 && statusCode < 500) {
+                    DpaCache.instance().invalidate(organisationId);
+                }
             } else {
                 inboundMessage = ex.getMessage();
             }
@@ -2,41 +2,91 @@ package org.endeavourhealth.sftpreader;
 
 import org.endeavourhealth.sftpreader.model.db.DbConfiguration;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
 
-public class SftpReaderTaskInfo {
+/**
+ * holds a task and when it's next due, ordered by that due date so it can sit in the scheduler's delay queue
+ * note that the scheduled date must not be changed while the task is in the queue
+ */
+public class SftpReaderTaskInfo implements Delayed {
 
     private SftpReaderTask sftpReaderTask;
     private DbConfiguration dbConfiguration;
-    private LocalDateTime nextScheduledDate;
+    private AdaptivePollFrequency pollFrequency;
+    private volatile LocalDateTime nextScheduledDate;
+    private volatile boolean runNowRequested = false;
     private String taskName;
 
-    public SftpReaderTaskInfo(SftpReaderTask sftpReaderTask, DbConfiguration dbConfiguration) {
+    public SftpReaderTaskInfo(SftpReaderTask sftpReaderTask, DbConfiguration dbConfiguration, AdaptivePollFrequency pollFrequency) {
         this.sftpReaderTask = sftpReaderTask;
         this.dbConfiguration = dbConfiguration;
+        this.pollFrequency = pollFrequency;
         this.nextScheduledDate = LocalDateTime.now();
         this.taskName = dbConfiguration.getConfigurationId();
     }
 
-    public void runTask() throws InterruptedException {
+    /**
+     * runs the task on the calling thread, which is one of the scheduler's worker threads,
+     * naming the thread after the configuration while it runs so log lines can be told apart
+     */
+    public void runTask() {
+        Thread currentThread = Thread.currentThread();
+        String previousThreadName = currentThread.getName();
         try {
-            Thread thread = new Thread(sftpReaderTask, getTaskName());
-            thread.start();
-            thread.join();
+            currentThread.setName(getTaskName());
+            sftpReaderTask.run();
         } finally {
+            currentThread.setName(previousThreadName);
             this.incrementScheduledDate();
         }
     }
 
+    public void releaseResources() {
+        sftpReaderTask.releaseResources();
+    }
+
     public LocalDateTime getNextScheduledDate() {
         return this.nextScheduledDate;
     }
 
     public void incrementScheduledDate() {
-        this.nextScheduledDate = LocalDateTime.now().plusSeconds(dbConfiguration.getPollFrequencySeconds());
+        this.nextScheduledDate = LocalDateTime.now().plusSeconds(pollFrequency.getNextPollSeconds());
+    }
+
+    public void scheduleNow() {
+        this.nextScheduledDate = LocalDateTime.now();
+    }
+
+    public boolean isRunNowRequested() {
+        return runNowRequested;
+    }
+
+    public void setRunNowRequested(boolean runNowRequested) {
+        this.runNowRequested = runNowRequested;
     }
 
     public String getTaskName() {
         return this.taskName;
     }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+        long millis = Duration.between(LocalDateTime.now(), nextScheduledDate).toMillis();
+        return unit.convert(millis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+        if (o == this) {
+            return 0;
+        }
+        //compare the dates themselves, since two calls to getDelay are made at slightly different times
+        if (o instanceof SftpReaderTaskInfo) {
+            return nextScheduledDate.compareTo(((SftpReaderTaskInfo)o).nextScheduledDate);
+        }
+        return Long.compare(getDelay(TimeUnit.MILLISECONDS), o.getDelay(TimeUnit.MILLISECONDS));
+    }
 }
@@ -1,70 +1,233 @@
 package org.endeavourhealth.sftpreader;
 
+import org.endeavourhealth.common.utility.MetricsHelper;
 import org.endeavourhealth.core.application.ApplicationHeartbeatCallbackI;
 import org.endeavourhealth.core.database.dal.audit.models.ApplicationHeartbeat;
 import org.endeavourhealth.sftpreader.model.db.DbConfiguration;
+import org.endeavourhealth.sftpreader.model.db.DbInstance;
+import org.endeavourhealth.sftpreader.sources.BandwidthScheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
 
+/**
+ * runs each configuration's SftpReaderTask when it's due, using a delay queue ordered
+ * by the next scheduled date so we wake up exactly when the next one is due
+ */
 public class SftpReaderTaskScheduler implements ApplicationHeartbeatCallbackI {
 
     private static final Logger LOG = LoggerFactory.getLogger(SftpReaderTaskScheduler.class);
     private static final DateTimeFormatter DATE_DISPLAY_FORMAT = DateTimeFormatter.ofPattern("yyyy-MMM-dd HH:mm:ss");
-    private static final int THREAD_SLEEP_SECONDS = 5000;
+    private static final int DEFAULT_MAX_CONCURRENT_TASKS = 1;
 
     private Configuration configuration;
     private List<SftpReaderTaskInfo> tasks;
-    private SftpReaderTaskInfo currentRunningTask = null;
-    private Date currentTaskStarted = null;
+    private DelayQueue<SftpReaderTaskInfo> queue = new DelayQueue<>();
+    private ExecutorService executorService = null;
+    private Semaphore freeWorkers = null; //so a task is only taken off the queue when there's a worker to run it
+    private Map<SftpReaderTaskInfo, Date> runningTasks = new ConcurrentHashMap<>();
+    private volatile boolean stopped = false;
+    private volatile Thread schedulerThread = null;
+    private ConfigurationLeaseManager leaseManager = null;
+    private LocalDirectoryWatcher directoryWatcher = null;
 
     public SftpReaderTaskScheduler(Configuration configuration) {
         this.configuration = configuration;
     }
 
-    public void start() throws InterruptedException {
+    public void start() throws Exception {
 
         LOG.info("Starting SftpReaderTaskScheduler");
 
         this.tasks = createTasks(configuration);
+        this.schedulerThread = Thread.currentThread();
 
-        while (true) {
+        int maxConcurrentTasks = getMaxConcurrentTasks(configuration);
+        LOG.info("Running up to " + maxConcurrentTasks + " SftpReaderTasks concurrently");
+        this.executorService = Executors.newFixedThreadPool(maxConcurrentTasks);
+        this.freeWorkers = new Semaphore(maxConcurrentTasks);
 
-            for (SftpReaderTaskInfo task : tasks) {
+        //with multiple configurations downloading at once, they share the instance's download bandwidth
+        BandwidthScheduler.initialise(configuration.getInstanceConfiguration().getMaxDownloadKbPerSecond());
+
+        //if this instance shares its configurations with others, work out which ones we've got before starting
+        this.leaseManager = new ConfigurationLeaseManager(configuration);
+        leaseManager.start(configurationId -> isRunning(configurationId));
+
+        queue.addAll(tasks);
+
+        //configurations reading from a local directory can be run as soon as files arrive, rather than on their next poll
+        this.directoryWatcher = new LocalDirectoryWatcher(configurationId -> runNow(configurationId));
+        directoryWatcher.start(configuration);
+
+        while (!stopped) {
+
+            //wait for a free worker before taking the next due task, so anything due while all the workers are busy
+            //stays on the queue (rather than the executor's) and isn't counted as running until it actually is
+            try {
+                freeWorkers.acquire();
+            } catch (InterruptedException ie) {
+                if (stopped) {
+                    break;
+                }
+                throw ie;
+            }
 
-                if (task.getNextScheduledDate().isBefore(LocalDateTime.now())) {
+            SftpReaderTaskInfo task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException ie) {
+                freeWorkers.release();
+                if (stopped) {
+                    break;
+                }
+                throw ie;
+            }
 
-                    LOG.info("Starting SftpReaderTask " + task.getTaskName());
-                    this.currentRunningTask = task;
-                    this.currentTaskStarted = new Date();
+            //if another instance in our lease pool has this configuration, just check again next time it's due
+            if (!leaseManager.isHeld(task.getTaskName())) {
+                LOG.trace("Not running SftpReaderTask " + task.getTaskName() + " as lease not held");
+                freeWorkers.release();
+                task.releaseResources();
+                task.incrementScheduledDate();
+                queue.add(task);
+                continue;
+            }
 
-                    LOG.trace("--------------------------------------------------");
-                    task.runTask();
-                    LOG.trace("--------------------------------------------------");
+            long lagMs = Duration.between(task.getNextScheduledDate(), LocalDateTime.now()).toMillis();
+            MetricsHelper.recordValue(task.getTaskName() + ".schedule-lag-ms", lagMs);
+            MetricsHelper.recordValue("scheduler.queue-depth", queue.size());
+
+            //mark as running before submitting, so a run-now request can't slip in between
+            synchronized (this) {
+                runningTasks.put(task, new Date());
+            }
+            executorService.submit(() -> runTask(task));
+        }
+    }
+
+    private void runTask(SftpReaderTaskInfo task) {
+        try {
+            LOG.info("Starting SftpReaderTask " + task.getTaskName());
+
+            LOG.trace("--------------------------------------------------");
+            task.runTask();
+            LOG.trace("--------------------------------------------------");
+
+            LOG.info("Completed SftpReaderTask " + task.getTaskName());
+
+        } catch (Throwable t) {
+            //SftpReaderTask handles its own errors, so this should never happen, but don't let it kill the worker
+            LOG.error("Unexpected error running SftpReaderTask " + task.getTaskName(), t);
+
+        } finally {
+            synchronized (this) {
+                runningTasks.remove(task);
+
+                //if someone asked for it to run while it was running, put it straight back on
+                if (task.isRunNowRequested()) {
+                    task.setRunNowRequested(false);
+                    task.scheduleNow();
+                }
+
+                if (!stopped) {
+                    queue.add(task);
+                }
+            }
+            freeWorkers.release();
+
+            LOG.trace("SftpReaderTask " + task.getTaskName() + " next scheduled for " + task.getNextScheduledDate().format(DATE_DISPLAY_FORMAT));
+        }
+    }
 
-                    LOG.info("Completed SftpReaderTask " + task.getTaskName());
-                    this.currentRunningTask = null;
-                    this.currentTaskStarted = null;
+    /**
+     * requests that a configuration is run as soon as possible, rather than waiting for its
+     * next scheduled date. If it's already running, it'll be run again as soon as it finishes.
+     * Returns false if the configuration isn't run by this scheduler.
+     */
+    public boolean runNow(String configurationId) {
+        if (tasks == null) {
+            return false;
+        }
 
-                    LOG.trace("SftpReaderTask " + task.getTaskName() + " next scheduled for " + task.getNextScheduledDate().format(DATE_DISPLAY_FORMAT));
+        for (SftpReaderTaskInfo task : tasks) {
+            if (task.getTaskName().equals(configurationId)) {
+                synchronized (this) {
+                    //the delay queue is ordered on the scheduled date, so it must be removed before being changed
+                    if (queue.remove(task)) {
+                        task.scheduleNow();
+                        queue.add(task);
+                    } else {
+                        task.setRunNowRequested(true);
+                    }
                 }
+                LOG.info("Requested immediate run of SftpReaderTask " + configurationId);
+                return true;
             }
+        }
 
-            Thread.sleep(THREAD_SLEEP_SECONDS);
+        return false;
+    }
+
+    private boolean isRunning(String configurationId) {
+        for (SftpReaderTaskInfo task : runningTasks.keySet()) {
+            if (task.getTaskName().equals(configurationId)) {
+                return true;
+            }
         }
+        return false;
     }
 
     public void stop() {
+        this.stopped = true;
+
+        if (schedulerThread != null) {
+            schedulerThread.interrupt();
+        }
+
+        if (directoryWatcher != null) {
+            directoryWatcher.stop();
+        }
+
+        if (executorService != null) {
+            LOG.info("Stopping SftpReaderTaskScheduler with " + runningTasks.size() + " task(s) running");
+            executorService.shutdown();
+            try {
+                executorService.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ie) {
+                LOG.warn("Interrupted waiting for SftpReaderTasks to finish");
+            }
+        }
+
+        if (tasks != null) {
+            for (SftpReaderTaskInfo task : tasks) {
+                task.releaseResources();
+            }
+        }
+
+        if (leaseManager != null) {
+            leaseManager.stop();
+        }
     }
 
-    private static List<SftpReaderTaskInfo> createTasks(Configuration configuration) {
+    private static int getMaxConcurrentTasks(Configuration configuration) {
+        DbInstance dbInstance = configuration.getInstanceConfiguration();
+        Integer maxConcurrentTasks = dbInstance.getMaxConcurrentTasks();
+        if (maxConcurrentTasks == null
+                || maxConcurrentTasks.intValue() < 1) {
+            return DEFAULT_MAX_CONCURRENT_TASKS;
+        }
+        return maxConcurrentTasks.intValue();
+    }
+
+    private static List<SftpReaderTaskInfo> createTasks(Configuration configuration) throws Exception {
 
         List<SftpReaderTaskInfo> tasks = new ArrayList<>();
 
@@ -74,7 +237,9 @@ public class SftpReaderTaskScheduler implements ApplicationHeartbeatCallbackI {
 
             SftpReaderTask sftpReaderTask = new SftpReaderTask(configuration, dbConfiguration.getConfigurationId());
 
-            tasks.add(new SftpReaderTaskInfo(sftpReaderTask, dbConfiguration));
+            AdaptivePollFrequency pollFrequency = new AdaptivePollFrequency(configuration.getDataLayer(), dbConfiguration);
+
+            tasks.add(new SftpReaderTaskInfo(sftpReaderTask, dbConfiguration, pollFrequency));
         }
 
         return tasks;
@@ -82,13 +247,24 @@ public class SftpReaderTaskScheduler implements ApplicationHeartbeatCallbackI {
 
     @Override
     public void populateIsBusy(ApplicationHeartbeat applicationHeartbeat) {
-        if (this.currentRunningTask == null) {
+
+        //take a copy, since tasks may start and finish while we're building the description
+        Map<SftpReaderTaskInfo, Date> running = new HashMap<>(runningTasks);
+
+        if (running.isEmpty()) {
             applicationHeartbeat.setBusy(Boolean.FALSE);
             applicationHeartbeat.setIsBusyDetail(null);
 
         } else {
+            List<SftpReaderTaskInfo> runningList = new ArrayList<>(running.keySet());
+            runningList.sort((o1, o2) -> running.get(o1).compareTo(running.get(o2)));
+
             DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
-            String detailDesc = "Running " + currentRunningTask.getTaskName() + " since " + dateFormat.format(currentTaskStarted);
+            List<String> descs = new ArrayList<>();
+            for (SftpReaderTaskInfo task : runningList) {
+                descs.add(task.getTaskName() + " since " + dateFormat.format(running.get(task)));
+            }
+            String detailDesc = "Running " + String.join(", ", descs);
 
             applicationHeartbeat.setBusy(Boolean.TRUE);
             applicationHeartbeat.setIsBusyDetail(detailDesc);
@@ -16,6 +16,8 @@ import java.util.Set;
 public abstract class SftpBatchSplitter {
     private static final Logger LOG = LoggerFactory.getLogger(SftpBatchSplitter.class);
 
+    private static final String ORGANISATION_THREADS = "SplitOrganisationThreads";
+
     public abstract List<BatchSplit> splitBatch(Batch batch,
                                                 Batch lastCompleteBatch,
                                                 DataLayerI db,
@@ -49,4 +51,12 @@ public abstract class SftpBatchSplitter {
 
         return ret;
     }
+
+    /**
+     * returns the number of organisations that may be processed at once after a batch has been split,
+     * from the configuration_kvp table. If not set, organisations are processed one at a time.
+     */
+    public static int getOrganisationThreads(DbConfiguration dbConfiguration) {
+        return Math.max(1, dbConfiguration.getKvpInt(ORGANISATION_THREADS, 1));
+    }
 }
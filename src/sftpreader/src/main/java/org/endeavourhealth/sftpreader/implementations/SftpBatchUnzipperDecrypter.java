@@ -1,12 +1,66 @@
 package org.endeavourhealth.sftpreader.implementations;
 
+import org.endeavourhealth.common.utility.FileHelper;
 import org.endeavourhealth.sftpreader.model.DataLayerI;
 
 import org.endeavourhealth.sftpreader.model.db.Batch;
+import org.endeavourhealth.sftpreader.model.db.BatchFile;
 import org.endeavourhealth.sftpreader.model.db.DbConfiguration;
 import org.endeavourhealth.sftpreader.model.db.DbInstanceEds;
+import org.endeavourhealth.sftpreader.utilities.ParallelTaskRunner;
+import org.endeavourhealth.sftpreader.utilities.PgpUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.InputStream;
 
 public abstract class SftpBatchUnzipperDecrypter {
+    private static final Logger LOG = LoggerFactory.getLogger(SftpBatchUnzipperDecrypter.class);
+
+    private static final String DECRYPT_THREADS = "DecryptThreads";
 
     public abstract void unzipAndDecrypt(Batch batch, DbInstanceEds instanceConfiguration, DbConfiguration dbConfiguration, DataLayerI db) throws Exception;
+
+    /**
+     * returns the number of files in a batch that may be decrypted at once, from the configuration_kvp table.
+     * If not set, files are decrypted one at a time.
+     */
+    public static int getDecryptThreads(DbConfiguration dbConfiguration) {
+        return Math.max(1, dbConfiguration.getKvpInt(DECRYPT_THREADS, 1));
+    }
+
+    /**
+     * runs the decrypter over every file in the batch, using up to the configuration's number of decrypt threads.
+     * The files are independent, so if one fails the others still carry on, and the first failure is thrown at the end.
+     */
+    protected static void decryptBatchFiles(Batch batch, DbConfiguration dbConfiguration, ParallelTaskRunner.ItemProcessor<BatchFile> decrypter) throws Exception {
+
+        int decryptThreads = getDecryptThreads(dbConfiguration);
+        if (decryptThreads > 1) {
+            LOG.info("   Decrypting " + batch.getBatchFiles().size() + " files using " + decryptThreads + " threads");
+        }
+
+        ParallelTaskRunner.runInParallel(dbConfiguration.getConfigurationId() + "-decrypt", decryptThreads, batch.getBatchFiles(), decrypter);
+    }
+
+    /**
+     * decrypts a PGP file from permanent storage into temp, deleting anything written if it fails, so a failed
+     * file is never mistaken for a decrypted one
+     */
+    protected static void decryptFromStorage(String encryptedSourceFile, String decryptedTempFile, DbConfiguration dbConfiguration) throws Exception {
+
+        InputStream inputStream = FileHelper.readFileFromSharedStorage(encryptedSourceFile);
+        try {
+            LOG.info("   Decrypting file to: " + decryptedTempFile);
+            PgpUtil.decryptAndVerify(inputStream, decryptedTempFile, dbConfiguration.getPgpConfiguration());
+
+        } catch (Exception ex) {
+            new File(decryptedTempFile).delete();
+            throw ex;
+
+        } finally {
+            inputStream.close();
+        }
+    }
 }
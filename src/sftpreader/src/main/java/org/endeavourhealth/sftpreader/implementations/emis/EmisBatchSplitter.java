@@ -15,6 +15,7 @@ import org.endeavourhealth.sftpreader.model.DataLayerI;
 import org.endeavourhealth.sftpreader.implementations.SftpBatchSplitter;
 import org.endeavourhealth.sftpreader.model.db.*;
 import org.endeavourhealth.sftpreader.model.exceptions.SftpFilenameParseException;
+import org.endeavourhealth.sftpreader.utilities.BatchCheckpointHelper;
 import org.endeavourhealth.sftpreader.utilities.CsvJoiner;
 import org.endeavourhealth.sftpreader.utilities.CsvSplitter;
 import org.endeavourhealth.sftpreader.utilities.RemoteFile;
@@ -35,7 +36,7 @@ public class EmisBatchSplitter extends SftpBatchSplitter {
 
     public static final String SPLIT_FOLDER = "Split";
 
-    private static List<String> agreedOrgIds = new ArrayList<>();
+    private static List<String> agreedOrgIds = Collections.synchronizedList(new ArrayList<>());
 
     /**
      * splits the EMIS extract files we use by org GUID and processing ID, so
@@ -65,9 +66,22 @@ public class EmisBatchSplitter extends SftpBatchSplitter {
 
         File dstDir = new File(splitTempDir);
 
-        //if the folder does exist, delete all content within it, since if we're re-splitting a file
-        //we want to make sure that all previous content is deleted
-        FileHelper.deleteRecursiveIfExists(dstDir);
+        //if a previous run was killed part way through splitting this batch, we can carry on from where it
+        //got to, provided the split folder is still there
+        BatchCheckpointHelper checkpoints = new BatchCheckpointHelper(db, batch.getBatchId());
+        boolean resuming = dstDir.exists()
+                && checkpoints.hasAnyCheckpoint(BatchCheckpointHelper.STAGE_SPLIT_FILE);
+
+        if (resuming) {
+            LOG.info("Resuming splitting of batch " + batch.getBatchId() + " from previous checkpoints");
+
+        } else {
+            //if the folder does exist, delete all content within it, since if we're re-splitting a file
+            //we want to make sure that all previous content is deleted
+            FileHelper.deleteRecursiveIfExists(dstDir);
+            checkpoints.clear(BatchCheckpointHelper.STAGE_SPLIT_FILE);
+            checkpoints.clear(BatchCheckpointHelper.STAGE_ORG_UPLOADED);
+        }
         FileHelper.createDirectoryIfNotExists(dstDir);
 
         //scan through the files in the folder and works out which are admin and which are clinical
@@ -82,10 +96,22 @@ public class EmisBatchSplitter extends SftpBatchSplitter {
         Map<File, Set<File>> processingIdDirsByOrgId = new HashMap<>();
 
         //split the org ID-only files (i.e. sharing agreements file) so we have a directory per organisation ID
+        boolean splitAnyFiles = false;
         for (String fileName: orgIdFiles) {
+            String stage = BatchCheckpointHelper.stageFor(BatchCheckpointHelper.STAGE_SPLIT_FILE, FilenameUtils.getName(fileName));
+            if (checkpoints.isComplete(stage)) {
+                LOG.debug("Skipping splitting " + fileName + " as already done");
+                continue;
+            }
+
+            //remove anything left over from a previous attempt at splitting this file
+            deleteSplitFileFromOrgDirs(dstDir, FilenameUtils.getName(fileName));
+
             LOG.trace("Splitting " + fileName + " into " +  dstDir);
             List<File> splitFiles = splitFile(fileName, dstDir, EmisConstants.CSV_FORMAT, SPLIT_COLUMN_ORG);
             appendOrgIdsToSet(splitFiles, orgIdDirs);
+            checkpoints.setComplete(stage);
+            splitAnyFiles = true;
         }
 
         //splitting the sharing agreements file will have created a folder for every org listed,
@@ -97,14 +123,29 @@ public class EmisBatchSplitter extends SftpBatchSplitter {
             }
         }
         orgIdDirs = expectedOrgFolders;
+
+        //if a previous run got as far as tidying up the org folders, any that were empty will have
+        //been deleted, so don't bring them back
+        if (resuming) {
+            orgIdDirs.removeIf(orgDir -> !orgDir.exists());
+        }
         LOG.trace("Created " + orgIdDirs.size() + " org ID folders");
 
         //split the clinical files by org and processing ID, which creates the org ID -> processing ID folder structure
         for (String sourceFilePath: orgAndProcessingIdFiles) {
-            LOG.trace("Splitting " + sourceFilePath + " into " + dstDir);
-            List<File> splitFiles = splitFile(sourceFilePath, dstDir, EmisConstants.CSV_FORMAT, SPLIT_COLUMN_ORG, SPLIT_COLUMN_PROCESSING_ID);
 
             String fileName = FilenameUtils.getName(sourceFilePath);
+            String stage = BatchCheckpointHelper.stageFor(BatchCheckpointHelper.STAGE_SPLIT_FILE, fileName);
+            if (checkpoints.isComplete(stage)) {
+                LOG.debug("Skipping splitting " + fileName + " as already done");
+                continue;
+            }
+
+            //remove anything left over from a previous attempt at splitting this file
+            deleteSplitFileFromOrgDirs(dstDir, fileName);
+
+            LOG.trace("Splitting " + sourceFilePath + " into " + dstDir);
+            List<File> splitFiles = splitFile(sourceFilePath, dstDir, EmisConstants.CSV_FORMAT, SPLIT_COLUMN_ORG, SPLIT_COLUMN_PROCESSING_ID);
 
             //having split the file, we then want to join the files back together so we have one per
             //organisation but ordered by processing ID
@@ -117,6 +158,8 @@ public class EmisBatchSplitter extends SftpBatchSplitter {
 
             //keep track of all the processing ID folders we've created
             appendProcessingIdDirsToMap(splitFiles, processingIdDirsByOrgId);
+            checkpoints.setComplete(stage);
+            splitAnyFiles = true;
         }
 
         //for the files with just a processing ID, each org folder we want a copy of the non-clinical data, but in processing ID order
@@ -125,6 +168,14 @@ public class EmisBatchSplitter extends SftpBatchSplitter {
             File reorderedFile = null;
 
             String fileName = FilenameUtils.getName(sourceFilePath);
+            String stage = BatchCheckpointHelper.stageFor(BatchCheckpointHelper.STAGE_SPLIT_FILE, fileName);
+            if (checkpoints.isComplete(stage)) {
+                LOG.debug("Skipping splitting " + fileName + " as already done");
+                continue;
+            }
+
+            //remove anything left over from a previous attempt at splitting this file
+            deleteSplitFileFromOrgDirs(dstDir, fileName);
 
             for (File orgDir: orgIdDirs) {
 
@@ -157,6 +208,19 @@ public class EmisBatchSplitter extends SftpBatchSplitter {
                     Files.copy(reorderedFile.toPath(), orgFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
                 }
             }
+
+            checkpoints.setComplete(stage);
+            splitAnyFiles = true;
+        }
+
+        //the uploads can only be relied on if all the files were already split by the previous run
+        if (resuming && splitAnyFiles) {
+            checkpoints.clear(BatchCheckpointHelper.STAGE_ORG_UPLOADED);
+        }
+
+        //files split by the previous run will have left processing ID folders we've not tracked above
+        if (resuming) {
+            appendExistingProcessingIdDirsToMap(orgIdDirs, processingIdDirsByOrgId);
         }
 
         //each org dir with have loads of empty folders for the processing IDs, so delete them
@@ -235,6 +299,12 @@ public class EmisBatchSplitter extends SftpBatchSplitter {
 
             ret.add(batchSplit);
 
+            String uploadedStage = BatchCheckpointHelper.stageFor(BatchCheckpointHelper.STAGE_ORG_UPLOADED, orgGuid);
+            if (checkpoints.isComplete(uploadedStage)) {
+                LOG.debug("Skipping uploading for " + orgGuid + " as already done");
+                continue;
+            }
+
             //copy everything to storage
             String storagePath = FilenameUtils.concat(sourcePermDir, SPLIT_FOLDER);
             storagePath = FilenameUtils.concat(storagePath, orgGuid);
@@ -249,11 +319,58 @@ public class EmisBatchSplitter extends SftpBatchSplitter {
 
                 FileHelper.writeFileToSharedStorage(storageFilePath, splitFile);
             }
+
+            checkpoints.setComplete(uploadedStage);
         }
 
         return ret;
     }
 
+    /**
+     * deletes any split or joined copies of the given file from the org and processing ID folders
+     */
+    private static void deleteSplitFileFromOrgDirs(File dstDir, String fileName) throws Exception {
+        File[] orgDirs = dstDir.listFiles();
+        if (orgDirs == null) {
+            return;
+        }
+
+        for (File orgDir : orgDirs) {
+            FileHelper.deleteRecursiveIfExists(new File(orgDir, fileName));
+
+            File[] processingIdDirs = orgDir.listFiles();
+            if (processingIdDirs == null) {
+                continue;
+            }
+
+            for (File processingIdDir : processingIdDirs) {
+                if (processingIdDir.isDirectory()) {
+                    FileHelper.deleteRecursiveIfExists(new File(processingIdDir, fileName));
+                }
+            }
+        }
+    }
+
+    private static void appendExistingProcessingIdDirsToMap(Set<File> orgIdDirs, Map<File, Set<File>> processingIdDirsByOrgId) {
+        for (File orgDir : orgIdDirs) {
+            File[] children = orgDir.listFiles();
+            if (children == null) {
+                continue;
+            }
+
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    Set<File> processingIdDirs = processingIdDirsByOrgId.get(orgDir);
+                    if (processingIdDirs == null) {
+                        processingIdDirs = new HashSet<>();
+                        processingIdDirsByOrgId.put(orgDir, processingIdDirs);
+                    }
+                    processingIdDirs.add(child);
+                }
+            }
+        }
+    }
+
 
 
 
@@ -12,7 +12,6 @@ import org.endeavourhealth.sftpreader.model.db.Batch;
 import org.endeavourhealth.sftpreader.model.db.BatchFile;
 import org.endeavourhealth.sftpreader.model.db.DbConfiguration;
 import org.endeavourhealth.sftpreader.model.db.DbInstanceEds;
-import org.endeavourhealth.sftpreader.utilities.PgpUtil;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
@@ -48,79 +47,85 @@ public class EmisBatchUnzipperDecrypter extends SftpBatchUnzipperDecrypter {
             f.mkdirs();
         }
 
-        for (BatchFile batchFile: batch.getBatchFiles()) {
+        //each file is independent, so they can be decrypted in parallel if configured
+        final String finalTempDir = tempDir;
+        final String finalStorageDir = storageDir;
+        decryptBatchFiles(batch, dbConfiguration, batchFile -> decryptFile(batchFile, finalTempDir, finalStorageDir, dbConfiguration));
+    }
 
-            String encryptedFilename = batchFile.getFilename();
+    private static void decryptFile(BatchFile batchFile, String tempDir, String storageDir, DbConfiguration dbConfiguration) throws Exception {
 
-            String encryptedExtension = dbConfiguration.getPgpFileExtensionFilter();
-            String decryptedFilename = StringUtils.removeEnd(encryptedFilename, encryptedExtension);
+        String encryptedFilename = batchFile.getFilename();
 
-            String encryptedSourceFile = FilenameUtils.concat(storageDir, encryptedFilename);
-            String decryptedTempFile = FilenameUtils.concat(tempDir, decryptedFilename);
+        String encryptedExtension = dbConfiguration.getPgpFileExtensionFilter();
+        String decryptedFilename = StringUtils.removeEnd(encryptedFilename, encryptedExtension);
 
-            InputStream inputStream = FileHelper.readFileFromSharedStorage(encryptedSourceFile);
+        String encryptedSourceFile = FilenameUtils.concat(storageDir, encryptedFilename);
+        String decryptedTempFile = FilenameUtils.concat(tempDir, decryptedFilename);
 
-            //on some of the "transform" servers, we use already decrypted Emis data as the source, so
-            //we don't have any encryption config. In this case, simply copy the source file into temp
-            //so the outcome is the same as it being decrypted
-            if (Strings.isNullOrEmpty(encryptedExtension)) {
+        //if the file was decrypted as it was downloaded (only renamed to this once fully verified), there's no need to read it from storage
+        if (!Strings.isNullOrEmpty(encryptedExtension)
+                && new File(decryptedTempFile).exists()) {
+            LOG.info("   Already decrypted on download to: " + decryptedTempFile);
+            tagEncryptedFile(encryptedSourceFile);
+            return;
+        }
 
-                try {
-                    LOG.info("   Copying w/o decryption to: " + decryptedTempFile);
-                    Path destination = new File(decryptedTempFile).toPath();
-                    Files.copy(inputStream, destination, StandardCopyOption.REPLACE_EXISTING);
+        //on some of the "transform" servers, we use already decrypted Emis data as the source, so
+        //we don't have any encryption config. In this case, simply copy the source file into temp
+        //so the outcome is the same as it being decrypted
+        if (Strings.isNullOrEmpty(encryptedExtension)) {
 
-                } finally {
-                    inputStream.close();
-                }
+            InputStream inputStream = FileHelper.readFileFromSharedStorage(encryptedSourceFile);
+            try {
+                LOG.info("   Copying w/o decryption to: " + decryptedTempFile);
+                Path destination = new File(decryptedTempFile).toPath();
+                Files.copy(inputStream, destination, StandardCopyOption.REPLACE_EXISTING);
 
-                continue;
+            } finally {
+                inputStream.close();
             }
 
-            //if this one has already been decrypted, skip it
-            //we delete the decrypted file after splitting, so it we're back in this function, we need to decrypt it again
-            /*if (batchFile.isDecrypted()) {
-                LOG.info("" + encryptedFilename + " has already been decrypted");
-                continue;
-            }*/
+            return;
+        }
 
+        //if this one has already been decrypted, skip it
+        //we delete the decrypted file after splitting, so it we're back in this function, we need to decrypt it again
+        /*if (batchFile.isDecrypted()) {
+            LOG.info("" + encryptedFilename + " has already been decrypted");
+            return;
+        }*/
 
-            String privateKey = dbConfiguration.getPgpConfiguration().getPgpRecipientPrivateKey();
-            String privateKeyPassword = dbConfiguration.getPgpConfiguration().getPgpRecipientPrivateKeyPassword();
-            String publicKey = dbConfiguration.getPgpConfiguration().getPgpSenderPublicKey();
 
-            try {
-                LOG.info("   Decrypting file to: " + decryptedTempFile);
-                PgpUtil.decryptAndVerify(inputStream, decryptedTempFile, privateKey, privateKeyPassword, publicKey);
+        decryptFromStorage(encryptedSourceFile, decryptedTempFile, dbConfiguration);
 
-                /*long decryptedFileSize = new File(decryptedTempFile).length();
-                batchFile.setDecryptedFilename(decryptedFilename);
-                batchFile.setDecryptedSizeBytes(decryptedFileSize);
-                db.setFileAsDecrypted(batchFile);*/
+        /*long decryptedFileSize = new File(decryptedTempFile).length();
+        batchFile.setDecryptedFilename(decryptedFilename);
+        batchFile.setDecryptedSizeBytes(decryptedFileSize);
+        db.setFileAsDecrypted(batchFile);*/
 
-            } finally {
-                inputStream.close();
-            }
+        //also this is a good point to tag our GPG file so that our data retention policy thing works
+        tagEncryptedFile(encryptedSourceFile);
 
-            //also this is a good point to tag our GPG file so that our data retention policy thing works
-            if (encryptedSourceFile.startsWith("S3")
-                    || encryptedSourceFile.startsWith("s3")) {
-                Map<String, String> tags = new HashMap<>();
-                tags.put("Emis", "raw");
-                FileHelper.setPermanentStorageTags(encryptedSourceFile, tags);
-            }
+        //if we're using separate temp and permanent storage, then we want to move the decrypted file into permanent storage
+        //taking out, since we store the split versions of the files in S3, there's no need to store the un-split versions too
+        /*if (!FilenameUtils.equals(sharedStoragePath, tempRootDir)) {
 
-            //if we're using separate temp and permanent storage, then we want to move the decrypted file into permanent storage
-            //taking out, since we store the split versions of the files in S3, there's no need to store the un-split versions too
-            /*if (!FilenameUtils.equals(sharedStoragePath, tempRootDir)) {
+            String decryptedPermanent = FilenameUtils.concat(sharedStoragePath, configurationDir);
+            decryptedPermanent = FilenameUtils.concat(decryptedPermanent, batchDir);
+            decryptedPermanent = FilenameUtils.concat(decryptedPermanent, decryptedFilename);
 
-                String decryptedPermanent = FilenameUtils.concat(sharedStoragePath, configurationDir);
-                decryptedPermanent = FilenameUtils.concat(decryptedPermanent, batchDir);
-                decryptedPermanent = FilenameUtils.concat(decryptedPermanent, decryptedFilename);
+            File decryptedSource = new File(decryptedTempFile);
+            FileHelper.writeFileToSharedStorage(decryptedPermanent, decryptedSource);
+        }*/
+    }
 
-                File decryptedSource = new File(decryptedTempFile);
-                FileHelper.writeFileToSharedStorage(decryptedPermanent, decryptedSource);
-            }*/
+    private static void tagEncryptedFile(String encryptedSourceFile) throws Exception {
+        if (encryptedSourceFile.startsWith("S3")
+                || encryptedSourceFile.startsWith("s3")) {
+            Map<String, String> tags = new HashMap<>();
+            tags.put("Emis", "raw");
+            FileHelper.setPermanentStorageTags(encryptedSourceFile, tags);
         }
     }
 }
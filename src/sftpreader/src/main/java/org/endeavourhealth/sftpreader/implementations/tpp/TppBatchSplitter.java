@@ -16,7 +16,9 @@ import org.endeavourhealth.sftpreader.implementations.tpp.utility.TppDataControl
 import org.endeavourhealth.sftpreader.implementations.tpp.utility.TppRebulkFilterHelper;
 import org.endeavourhealth.sftpreader.model.DataLayerI;
 import org.endeavourhealth.sftpreader.model.db.*;
+import org.endeavourhealth.sftpreader.utilities.BatchCheckpointHelper;
 import org.endeavourhealth.sftpreader.utilities.CsvSplitter;
+import org.endeavourhealth.sftpreader.utilities.ParallelTaskRunner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,8 +57,7 @@ public class TppBatchSplitter extends SftpBatchSplitter {
         String sourceTempDir = FilenameUtils.concat(tempDir, configurationDir);
         sourceTempDir = FilenameUtils.concat(sourceTempDir, batchDir);
 
-        String sourcePermDir = FilenameUtils.concat(sharedStorageDir, configurationDir);
-        sourcePermDir = FilenameUtils.concat(sourcePermDir, batchDir);
+        String sourcePermDir = FilenameUtils.concat(FilenameUtils.concat(sharedStorageDir, configurationDir), batchDir);
 
         String splitTempDir = FilenameUtils.concat(tempDir, configurationDir);
         splitTempDir = FilenameUtils.concat(splitTempDir, batchDir);
@@ -66,9 +67,23 @@ public class TppBatchSplitter extends SftpBatchSplitter {
 
         LOG.trace("Splitting CSV files to " + splitTempDir);
 
-        //if the folder does exist, delete all content within it, since if we're re-splitting a file
-        //we want to make sure that all previous content is deleted
-        FileHelper.deleteRecursiveIfExists(dstDir);
+        //if a previous run was killed part way through splitting this batch, we can carry on from where it
+        //got to, provided the split folder is still there
+        BatchCheckpointHelper checkpoints = new BatchCheckpointHelper(db, batch.getBatchId());
+        boolean resuming = dstDir.exists()
+                && checkpoints.hasAnyCheckpoint(BatchCheckpointHelper.STAGE_SPLIT_FILE);
+
+        if (resuming) {
+            LOG.info("Resuming splitting of batch " + batch.getBatchId() + " from previous checkpoints");
+
+        } else {
+            //if the folder does exist, delete all content within it, since if we're re-splitting a file
+            //we want to make sure that all previous content is deleted
+            FileHelper.deleteRecursiveIfExists(dstDir);
+            checkpoints.clear(BatchCheckpointHelper.STAGE_SPLIT_FILE);
+            checkpoints.clear(BatchCheckpointHelper.STAGE_ORG_FILTERED);
+            checkpoints.clear(BatchCheckpointHelper.STAGE_ORG_UPLOADED);
+        }
         FileHelper.createDirectoryIfNotExists(dstDir);
 
         //work out which files we want to split
@@ -77,8 +92,26 @@ public class TppBatchSplitter extends SftpBatchSplitter {
         identifyFiles(sourceTempDir, filesToSplit, filesToNotSplit);
 
         //split the files we can
+        boolean splitAnyFiles = false;
         for (File f : filesToSplit) {
+            String stage = BatchCheckpointHelper.stageFor(BatchCheckpointHelper.STAGE_SPLIT_FILE, f.getName());
+            if (checkpoints.isComplete(stage)) {
+                LOG.debug("Skipping splitting " + f.getName() + " as already done");
+                continue;
+            }
+
+            //remove anything left over from a previous attempt at splitting this file
+            deleteSplitFileFromOrgDirs(dstDir, f.getName());
+
             splitFile(f.getAbsolutePath(), dstDir, TppConstants.CSV_FORMAT.withHeader(), SPLIT_COLUMN_ORG);
+            checkpoints.setComplete(stage);
+            splitAnyFiles = true;
+        }
+
+        //the org-level stages can only be relied on if all the files were already split by the previous run
+        if (resuming && splitAnyFiles) {
+            checkpoints.clear(BatchCheckpointHelper.STAGE_ORG_FILTERED);
+            checkpoints.clear(BatchCheckpointHelper.STAGE_ORG_UPLOADED);
         }
 
         //the splitting will have created a directory for each organisation in the files, so use
@@ -95,6 +128,12 @@ public class TppBatchSplitter extends SftpBatchSplitter {
         for (File f : filesToNotSplit) {
             for (File orgDir : orgDirs) {
 
+                //if resuming and this org has already been filtered, don't overwrite its files
+                String filteredStage = BatchCheckpointHelper.stageFor(BatchCheckpointHelper.STAGE_ORG_FILTERED, orgDir.getName());
+                if (checkpoints.isComplete(filteredStage)) {
+                    continue;
+                }
+
                 File dst = new File(orgDir, f.getName());
                 Files.copy(f.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
             }
@@ -106,8 +145,8 @@ public class TppBatchSplitter extends SftpBatchSplitter {
         LOG.trace("Completed CSV file splitting to " + dstDir);
 
         List<BatchSplit> batchSplits = new ArrayList<>();
+        Map<File, BatchSplit> hmBatchSplitsByOrgDir = new HashMap<>();
 
-        //for each org dir created we now need to do some filtering and copy the files into S3
         for (File orgDir : orgDirs) {
 
             int batchId = batch.getBatchId();
@@ -119,16 +158,40 @@ public class TppBatchSplitter extends SftpBatchSplitter {
             batchSplit.setLocalRelativePath(localPath);
             batchSplit.setOrganisationId(orgId); //the TPP org ID IS the ODS Code
             batchSplits.add(batchSplit);
+            hmBatchSplitsByOrgDir.put(orgDir, batchSplit);
+        }
+
+        //for each org dir created we now need to do some filtering and copy the files into S3, which can be
+        //done for multiple orgs at once since each org dir is independent
+        int threads = getOrganisationThreads(dbConfiguration);
+        ParallelTaskRunner.runInParallel(dbConfiguration.getConfigurationId() + "-split", threads, orgDirs, orgDir -> {
 
-            //remove any shared community data
-            TppDataControllerFilterHelper.filterFilesForSharedData(orgDir, db);
+            BatchSplit batchSplit = hmBatchSplitsByOrgDir.get(orgDir);
+            String orgId = orgDir.getName();
+            String filteredStage = BatchCheckpointHelper.stageFor(BatchCheckpointHelper.STAGE_ORG_FILTERED, orgId);
+            String uploadedStage = BatchCheckpointHelper.stageFor(BatchCheckpointHelper.STAGE_ORG_UPLOADED, orgId);
+
+            if (checkpoints.isComplete(uploadedStage)) {
+                LOG.debug("Skipping filtering and uploading for " + orgId + " as already done");
+                return;
+            }
 
-            //remove any duplicate SRCode data
-            filterFilesForDuplicateData(orgDir, batch, batchSplit, db, instanceConfiguration, dbConfiguration);
+            //the duplicate filtering updates the hash tables as it goes, so it's important to not repeat it if already done
+            if (!checkpoints.isCompleteAndIntact(filteredStage, orgDir, false)) {
+
+                //remove any shared community data
+                TppDataControllerFilterHelper.filterFilesForSharedData(orgDir, db);
+
+                //remove any duplicate SRCode data
+                filterFilesForDuplicateData(orgDir, batch, batchSplit, db, instanceConfiguration, dbConfiguration);
+
+                checkpoints.setComplete(filteredStage, orgDir, false);
+            }
 
             //copy all files from temp dir to S3
             copyToPermanentStorage(orgDir, sourcePermDir);
-        }
+            checkpoints.setComplete(uploadedStage);
+        });
 
         return batchSplits;
     }
@@ -186,6 +249,18 @@ public class TppBatchSplitter extends SftpBatchSplitter {
     }
 
 
+    private static void deleteSplitFileFromOrgDirs(File dstDir, String fileName) throws Exception {
+        File[] orgDirs = dstDir.listFiles();
+        if (orgDirs == null) {
+            return;
+        }
+
+        for (File orgDir : orgDirs) {
+            File splitFile = new File(orgDir, fileName);
+            FileHelper.deleteRecursiveIfExists(splitFile);
+        }
+    }
+
     private static void copyToPermanentStorage(File orgDir, String sourcePermDir) throws Exception {
 
         String orgId = orgDir.getName();
@@ -5,6 +5,7 @@ import org.endeavourhealth.sftpreader.model.db.*;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
@@ -16,8 +17,13 @@ public interface DataLayerI {
 
 
     AddFileResult addFile(String configurationId, SftpFile sftpFile) throws Exception;
+    Set<String> getDownloadedFileKeys(String configurationId, Date modifiedSince) throws Exception; //null date returns all
+    Set<String> getNotDownloadedFilenames(String configurationId) throws Exception;
 
     void setFileAsDownloaded(int batchFileId, boolean downloaded) throws Exception;
+    void setFileContentHash(int batchFileId, String contentHash) throws Exception;
+    List<String> findFilesWithContentHash(String configurationId, String contentHash, int excludeBatchFileId) throws Exception;
+    Map<String, String> getFileContentHashes(int batchId) throws Exception;
     void setFileAsDeleted(BatchFile batchFile) throws Exception;
 
     boolean addUnknownFile(String configurationId, SftpFile batchFile) throws Exception;
@@ -39,6 +45,10 @@ public interface DataLayerI {
     void deleteBatchSplits(Batch batch) throws Exception;
     List<BatchSplit> getBatchSplitsForBatch(int queryBatchId) throws Exception;
 
+    Map<String, String> getBatchStageCheckpoints(int batchId) throws Exception;
+    void addBatchStageCheckpoint(int batchId, String stage, String detail) throws Exception;
+    void deleteBatchStageCheckpoints(int batchId, String stagePrefix) throws Exception; //null prefix deletes all
+
     void addEmisOrganisationMap(EmisOrganisationMap mapping) throws Exception;
     List<EmisOrganisationMap> getEmisOrganisationMapsForOdsCode(String odsCode) throws Exception;
     EmisOrganisationMap getEmisOrganisationMap(String guid) throws Exception;
@@ -53,13 +63,22 @@ public interface DataLayerI {
     List<String> getNotifiedMessages(BatchSplit batchSplit) throws Exception;
 
     ConfigurationPollingAttempt getLastPollingAttempt(String configurationId) throws Exception;
+    List<ConfigurationPollingAttempt> getPollingAttemptsWithDownloads(String configurationId, Date since) throws Exception;
     void savePollingAttempt(ConfigurationPollingAttempt attempt) throws Exception;
 
+    RemoteListingWatermark getRemoteListingWatermark(String configurationId) throws Exception;
+    void saveRemoteListingWatermark(RemoteListingWatermark watermark) throws Exception;
+
     Set<String> getAdastraOdsCodes(String configurationId, String filenameOrgCode) throws Exception;
     void saveAdastraOdsCode(String configurationId, String filenameOrgCode, String odsCode) throws Exception;
 
     void resetBatch(int batchId) throws Exception;
 
+    boolean acquireConfigurationLease(String configurationId, String instanceName, int leaseSeconds) throws Exception;
+    void releaseConfigurationLease(String configurationId, String instanceName) throws Exception;
+    void updateLeaseHeartbeat(String instanceName) throws Exception;
+    int countLiveLeaseInstances(String leasePool, int timeoutSeconds) throws Exception;
+
     Date isPausedNotifyingMessagingApi(String configurationId) throws Exception;
 
     //void addTppOrganisationMap(TppOrganisationMap mapping) throws Exception;
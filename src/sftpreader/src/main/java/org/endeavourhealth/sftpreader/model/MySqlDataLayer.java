@@ -6,6 +6,7 @@ import org.endeavourhealth.common.postgres.PgStoredProcException;
 import org.endeavourhealth.core.database.rdbms.ConnectionManager;
 import org.endeavourhealth.sftpreader.SftpFile;
 import org.endeavourhealth.sftpreader.model.db.*;
+import org.endeavourhealth.sftpreader.utilities.KnownFileIndex;
 
 import javax.sql.DataSource;
 import java.sql.*;
@@ -25,7 +26,7 @@ public class MySqlDataLayer implements DataLayerI {
         PreparedStatement psSelectInstanceConfiguration = null;
         PreparedStatement psSelectEdsConfiguration = null;
         try {
-            String sql = "SELECT hostname, http_management_port FROM instance WHERE instance_name = ?;";
+            String sql = "SELECT hostname, http_management_port, max_concurrent_tasks, lease_pool, max_download_kb_per_second FROM instance WHERE instance_name = ?;";
 
             psSelectInstance = connection.prepareStatement(sql);
             psSelectInstance.setString(1, instanceName);
@@ -40,6 +41,17 @@ public class MySqlDataLayer implements DataLayerI {
             if (!rs.wasNull()) {
                 httpPort = new Integer(portNum);
             }
+            Integer maxConcurrentTasks = null;
+            int maxTasksNum = rs.getInt(3);
+            if (!rs.wasNull()) {
+                maxConcurrentTasks = new Integer(maxTasksNum);
+            }
+            String leasePool = rs.getString(4);
+            Integer maxDownloadKbPerSecond = null;
+            int maxDownloadNum = rs.getInt(5);
+            if (!rs.wasNull()) {
+                maxDownloadKbPerSecond = new Integer(maxDownloadNum);
+            }
 
             //if the host name isn't set on the DB, update the record
             if (dbHostName == null) {
@@ -60,12 +72,27 @@ public class MySqlDataLayer implements DataLayerI {
             DbInstance ret = new DbInstance();
             ret.setInstanceName(instanceName);
             ret.setHttpManagementPort(httpPort);
+            ret.setMaxConcurrentTasks(maxConcurrentTasks);
+            ret.setLeasePool(leasePool);
+            ret.setMaxDownloadKbPerSecond(maxDownloadKbPerSecond);
+
+            //select the configuration IDs that this instance checks - if in a lease pool, that's any configuration
+            //assigned to any instance in the same pool
+            if (leasePool == null) {
+                sql = "SELECT configuration_id FROM instance_configuration WHERE instance_name = ?;";
+
+                psSelectInstanceConfiguration = connection.prepareStatement(sql);
+                psSelectInstanceConfiguration.setString(1, instanceName);
 
-            //select the configuration IDs that this instance checks
-            sql = "SELECT configuration_id FROM instance_configuration WHERE instance_name = ?;";
+            } else {
+                sql = "SELECT ic.configuration_id"
+                        + " FROM instance_configuration ic"
+                        + " INNER JOIN instance i ON i.instance_name = ic.instance_name"
+                        + " WHERE i.lease_pool = ?;";
 
-            psSelectInstanceConfiguration = connection.prepareStatement(sql);
-            psSelectInstanceConfiguration.setString(1, instanceName);
+                psSelectInstanceConfiguration = connection.prepareStatement(sql);
+                psSelectInstanceConfiguration.setString(1, leasePool);
+            }
 
             List<String> configurationIds = new ArrayList<>();
             ret.setConfigurationIds(configurationIds);
@@ -164,7 +191,7 @@ public class MySqlDataLayer implements DataLayerI {
                 throw new PgStoredProcException("No configuration found with configuration id " + configurationId);
             }
 
-            sql = "SELECT hostname, port, remote_path, username, client_private_key, client_private_key_password, host_public_key"
+            sql = "SELECT hostname, port, remote_path, username, client_private_key, client_private_key_password, host_public_key, download_threads"
                     + " FROM configuration_sftp"
                     + " WHERE configuration_id = ?;";
 
@@ -184,6 +211,11 @@ public class MySqlDataLayer implements DataLayerI {
                 sftpConfig.setClientPrivateKeyPassword(rs.getString(col++));
                 sftpConfig.setHostPublicKey(rs.getString(col++));
 
+                int downloadThreads = rs.getInt(col++);
+                if (!rs.wasNull()) {
+                    sftpConfig.setDownloadThreads(new Integer(downloadThreads));
+                }
+
                 ret.setSftpConfiguration(sftpConfig);
 
             } else {
@@ -510,6 +542,79 @@ public class MySqlDataLayer implements DataLayerI {
         return createBatchFile(batchIdToUse, interfaceTypeId, fileType, fileName, fileSizeBytes, fileCreatedDate);
     }
 
+    @Override
+    public Set<String> getDownloadedFileKeys(String configurationId, Date modifiedSince) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "SELECT b.batch_identifier, bf.file_type_identifier, bf.filename"
+                    + " FROM batch_file bf"
+                    + " INNER JOIN batch b ON b.batch_id = bf.batch_id"
+                    + " WHERE b.configuration_id = ?"
+                    + " AND bf.is_downloaded = true";
+            if (modifiedSince != null) {
+                sql += " AND bf.remote_created_date >= ?";
+            }
+
+            ps = connection.prepareStatement(sql);
+            ps.setString(1, configurationId);
+            if (modifiedSince != null) {
+                ps.setTimestamp(2, new java.sql.Timestamp(modifiedSince.getTime()));
+            }
+
+            Set<String> ret = new HashSet<>();
+
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                int col = 1;
+                String batchIdentifier = rs.getString(col++);
+                String fileTypeIdentifier = rs.getString(col++);
+                String filename = rs.getString(col++);
+                ret.add(KnownFileIndex.createKey(batchIdentifier, fileTypeIdentifier, filename));
+            }
+
+            return ret;
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
+    @Override
+    public Set<String> getNotDownloadedFilenames(String configurationId) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "SELECT bf.filename"
+                    + " FROM batch_file bf"
+                    + " INNER JOIN batch b ON b.batch_id = bf.batch_id"
+                    + " WHERE b.configuration_id = ?"
+                    + " AND bf.is_downloaded = false"
+                    + " AND coalesce(bf.is_deleted, false) = false";
+
+            ps = connection.prepareStatement(sql);
+            ps.setString(1, configurationId);
+
+            Set<String> ret = new HashSet<>();
+
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                ret.add(rs.getString(1));
+            }
+
+            return ret;
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
     @Override
     public void setFileAsDownloaded(int batchFileId, boolean downloaded) throws Exception {
         Connection connection = getConnection();
@@ -538,6 +643,108 @@ public class MySqlDataLayer implements DataLayerI {
         }
     }
 
+    @Override
+    public void setFileContentHash(int batchFileId, String contentHash) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "UPDATE batch_file SET content_hash = ? WHERE batch_file_id = ?;";
+
+            ps = connection.prepareStatement(sql);
+
+            int col = 1;
+            ps.setString(col++, contentHash);
+            ps.setInt(col++, batchFileId);
+
+            ps.executeUpdate();
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
+    @Override
+    public List<String> findFilesWithContentHash(String configurationId, String contentHash, int excludeBatchFileId) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "SELECT b.batch_identifier, bf.filename"
+                    + " FROM batch_file bf"
+                    + " INNER JOIN batch b ON b.batch_id = bf.batch_id"
+                    + " WHERE bf.content_hash = ?"
+                    + " AND b.configuration_id = ?"
+                    + " AND bf.batch_file_id != ?";
+
+            ps = connection.prepareStatement(sql);
+
+            int col = 1;
+            ps.setString(col++, contentHash);
+            ps.setString(col++, configurationId);
+            ps.setInt(col++, excludeBatchFileId);
+
+            List<String> ret = new ArrayList<>();
+
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                col = 1;
+                String batchIdentifier = rs.getString(col++);
+                String filename = rs.getString(col++);
+                ret.add(batchIdentifier + "/" + filename);
+            }
+
+            return ret;
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
+    /**
+     * returns the saved content hash of each downloaded file in the batch, by filename, for those that have one
+     */
+    @Override
+    public Map<String, String> getFileContentHashes(int batchId) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "SELECT filename, content_hash"
+                    + " FROM batch_file"
+                    + " WHERE batch_id = ?"
+                    + " AND is_downloaded = true"
+                    + " AND coalesce(is_deleted, false) = false"
+                    + " AND content_hash IS NOT NULL";
+
+            ps = connection.prepareStatement(sql);
+
+            int col = 1;
+            ps.setInt(col++, batchId);
+
+            Map<String, String> ret = new HashMap<>();
+
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                col = 1;
+                String filename = rs.getString(col++);
+                String contentHash = rs.getString(col++);
+                ret.put(filename, contentHash);
+            }
+
+            return ret;
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
     @Override
     public void setFileAsDeleted(BatchFile batchFile) throws Exception {
         Connection connection = getConnection();
@@ -1082,6 +1289,88 @@ public class MySqlDataLayer implements DataLayerI {
 
     }
 
+    @Override
+    public Map<String, String> getBatchStageCheckpoints(int batchId) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "SELECT stage, detail FROM batch_stage_checkpoint WHERE batch_id = ?";
+
+            ps = connection.prepareStatement(sql);
+            ps.setInt(1, batchId);
+
+            Map<String, String> ret = new HashMap<>();
+
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                String stage = rs.getString(1);
+                String detail = rs.getString(2);
+                ret.put(stage, detail);
+            }
+
+            return ret;
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
+    @Override
+    public void addBatchStageCheckpoint(int batchId, String stage, String detail) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "INSERT INTO batch_stage_checkpoint (batch_id, stage, detail, completed_date) VALUES (?, ?, ?, ?)"
+                    + " ON DUPLICATE KEY UPDATE"
+                    + " detail = VALUES(detail),"
+                    + " completed_date = VALUES(completed_date)";
+
+            ps = connection.prepareStatement(sql);
+
+            int col = 1;
+            ps.setInt(col++, batchId);
+            ps.setString(col++, stage);
+            ps.setString(col++, detail);
+            ps.setTimestamp(col++, new java.sql.Timestamp(new Date().getTime()));
+
+            ps.executeUpdate();
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
+    @Override
+    public void deleteBatchStageCheckpoints(int batchId, String stagePrefix) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "DELETE FROM batch_stage_checkpoint WHERE batch_id = ?";
+            if (stagePrefix != null) {
+                sql += " AND stage LIKE ?";
+            }
+
+            ps = connection.prepareStatement(sql);
+            ps.setInt(1, batchId);
+            if (stagePrefix != null) {
+                ps.setString(2, stagePrefix + "%");
+            }
+            ps.executeUpdate();
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
     @Override
     public List<BatchSplit> getBatchSplitsForBatch(int queryBatchId) throws Exception {
         Connection connection = getConnection();
@@ -1417,6 +1706,54 @@ public class MySqlDataLayer implements DataLayerI {
         }
     }
 
+    @Override
+    public List<ConfigurationPollingAttempt> getPollingAttemptsWithDownloads(String configurationId, Date since) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "SELECT configuration_id, attempt_started, attempt_finished, exception_text, files_downloaded,"
+                    + " batches_completed, batch_splits_notified_ok, batch_splits_notified_failure"
+                    + " FROM configuration_polling_attempt"
+                    + " WHERE configuration_id = ?"
+                    + " AND attempt_started >= ?"
+                    + " AND files_downloaded > 0"
+                    + " ORDER BY attempt_started";
+
+            ps = connection.prepareStatement(sql);
+
+            int col = 1;
+            ps.setString(col++, configurationId);
+            ps.setTimestamp(col++, new java.sql.Timestamp(since.getTime()));
+
+            List<ConfigurationPollingAttempt> ret = new ArrayList<>();
+
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+
+                col = 1;
+
+                ConfigurationPollingAttempt attempt = new ConfigurationPollingAttempt();
+                attempt.setConfigurationId(rs.getString(col++));
+                attempt.setAttemptStarted(new Date(rs.getTimestamp(col++).getTime()));
+                attempt.setAttemptFinished(new Date(rs.getTimestamp(col++).getTime()));
+                attempt.setErrorText(rs.getString(col++));
+                attempt.setFilesDownloaded(rs.getInt(col++));
+                attempt.setBatchesCompleted(rs.getInt(col++));
+                attempt.setBatchSplitsNotifiedOk(rs.getInt(col++));
+                attempt.setBatchSplitsNotifiedFailure(rs.getInt(col++));
+                ret.add(attempt);
+            }
+
+            return ret;
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
     @Override
     public void savePollingAttempt(ConfigurationPollingAttempt attempt) throws Exception {
         Connection connection = getConnection();
@@ -1454,6 +1791,71 @@ public class MySqlDataLayer implements DataLayerI {
 
     }
 
+    @Override
+    public RemoteListingWatermark getRemoteListingWatermark(String configurationId) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "SELECT configuration_id, last_modified, last_full_listing"
+                    + " FROM remote_listing_watermark"
+                    + " WHERE configuration_id = ?";
+
+            ps = connection.prepareStatement(sql);
+
+            ps.setString(1, configurationId);
+
+            ResultSet rs = ps.executeQuery();
+            if (rs.next()) {
+
+                int col = 1;
+
+                RemoteListingWatermark ret = new RemoteListingWatermark();
+                ret.setConfigurationId(rs.getString(col++));
+                ret.setLastModified(new Date(rs.getTimestamp(col++).getTime()));
+                ret.setLastFullListing(new Date(rs.getTimestamp(col++).getTime()));
+                return ret;
+
+            } else {
+                return null;
+            }
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
+    @Override
+    public void saveRemoteListingWatermark(RemoteListingWatermark watermark) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "INSERT INTO remote_listing_watermark"
+                    + " (configuration_id, last_modified, last_full_listing)"
+                    + " VALUES (?, ?, ?)"
+                    + " ON DUPLICATE KEY UPDATE"
+                    + " last_modified = VALUES(last_modified),"
+                    + " last_full_listing = VALUES(last_full_listing)";
+
+            ps = connection.prepareStatement(sql);
+
+            int col = 1;
+            ps.setString(col++, watermark.getConfigurationId());
+            ps.setTimestamp(col++, new Timestamp(watermark.getLastModified().getTime()));
+            ps.setTimestamp(col++, new Timestamp(watermark.getLastFullListing().getTime()));
+
+            ps.executeUpdate();
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
     @Override
     public Set<String> getAdastraOdsCodes(String configurationId, String fileNameOrgCode) throws Exception {
         Connection connection = getConnection();
@@ -1527,6 +1929,13 @@ public class MySqlDataLayer implements DataLayerI {
             ps.close();
             ps = null;
 
+            sql = "DELETE FROM batch_stage_checkpoint WHERE batch_id = ?";
+            ps = connection.prepareStatement(sql);
+            ps.setInt(1, batchId);
+            ps.executeUpdate();
+            ps.close();
+            ps = null;
+
             sql = "DELETE FROM batch_split WHERE batch_id = ?";
             ps = connection.prepareStatement(sql);
             ps.setInt(1, batchId);
@@ -1606,4 +2015,118 @@ public class MySqlDataLayer implements DataLayerI {
         conn.setAutoCommit(true);
         return conn;
     }
+
+    /**
+     * takes or renews the lease on a configuration, if it's not held by another instance or the other instance's
+     * lease has expired. The DB clock is used for the expiry so it doesn't matter if servers' clocks differ.
+     */
+    @Override
+    public boolean acquireConfigurationLease(String configurationId, String instanceName, int leaseSeconds) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement psUpdate = null;
+        PreparedStatement psInsert = null;
+        try {
+            String sql = "UPDATE configuration_lease"
+                    + " SET instance_name = ?, lease_expires = DATE_ADD(NOW(), INTERVAL ? SECOND)"
+                    + " WHERE configuration_id = ?"
+                    + " AND (instance_name = ? OR lease_expires < NOW())";
+
+            psUpdate = connection.prepareStatement(sql);
+
+            int col = 1;
+            psUpdate.setString(col++, instanceName);
+            psUpdate.setInt(col++, leaseSeconds);
+            psUpdate.setString(col++, configurationId);
+            psUpdate.setString(col++, instanceName);
+
+            if (psUpdate.executeUpdate() > 0) {
+                return true;
+            }
+
+            //if nothing updated, either someone else holds it or nobody ever has
+            sql = "INSERT IGNORE INTO configuration_lease (configuration_id, instance_name, lease_expires) VALUES (?, ?, DATE_ADD(NOW(), INTERVAL ? SECOND))";
+
+            psInsert = connection.prepareStatement(sql);
+
+            col = 1;
+            psInsert.setString(col++, configurationId);
+            psInsert.setString(col++, instanceName);
+            psInsert.setInt(col++, leaseSeconds);
+
+            return psInsert.executeUpdate() > 0;
+
+        } finally {
+            if (psUpdate != null) {
+                psUpdate.close();
+            }
+            if (psInsert != null) {
+                psInsert.close();
+            }
+            connection.close();
+        }
+    }
+
+    @Override
+    public void releaseConfigurationLease(String configurationId, String instanceName) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "DELETE FROM configuration_lease WHERE configuration_id = ? AND instance_name = ?";
+
+            ps = connection.prepareStatement(sql);
+            ps.setString(1, configurationId);
+            ps.setString(2, instanceName);
+            ps.executeUpdate();
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
+    @Override
+    public void updateLeaseHeartbeat(String instanceName) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "UPDATE instance SET lease_heartbeat_date = NOW() WHERE instance_name = ?";
+
+            ps = connection.prepareStatement(sql);
+            ps.setString(1, instanceName);
+            ps.executeUpdate();
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
+    @Override
+    public int countLiveLeaseInstances(String leasePool, int timeoutSeconds) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "SELECT COUNT(1) FROM instance"
+                    + " WHERE lease_pool = ?"
+                    + " AND lease_heartbeat_date > DATE_SUB(NOW(), INTERVAL ? SECOND)";
+
+            ps = connection.prepareStatement(sql);
+            ps.setString(1, leasePool);
+            ps.setInt(2, timeoutSeconds);
+
+            ResultSet rs = ps.executeQuery();
+            rs.next();
+            return rs.getInt(1);
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
 }
@@ -10,6 +10,7 @@ import org.endeavourhealth.common.utility.StreamExtension;
 import org.endeavourhealth.core.database.rdbms.ConnectionManager;
 import org.endeavourhealth.sftpreader.SftpFile;
 import org.endeavourhealth.sftpreader.model.db.*;
+import org.endeavourhealth.sftpreader.utilities.KnownFileIndex;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
@@ -32,7 +33,10 @@ public class PostgresDataLayer implements DataLayerI, IDBDigestLogger {
         DbInstance dbInstance = pgStoredProc.executeMultiQuerySingleRow((resultSet) ->
                 new DbInstance()
                     .setInstanceName(resultSet.getString("instance_name"))
-                    .setHttpManagementPort(PgResultSet.getInteger(resultSet, "http_management_port")));
+                    .setHttpManagementPort(PgResultSet.getInteger(resultSet, "http_management_port"))
+                    .setMaxConcurrentTasks(PgResultSet.getInteger(resultSet, "max_concurrent_tasks"))
+                    .setLeasePool(resultSet.getString("lease_pool"))
+                    .setMaxDownloadKbPerSecond(PgResultSet.getInteger(resultSet, "max_download_kb_per_second")));
 
         List<String> configurationIds = pgStoredProc.executeMultiQuery((resultSet) -> resultSet.getString("configuration_id"));
 
@@ -91,7 +95,8 @@ public class PostgresDataLayer implements DataLayerI, IDBDigestLogger {
                         .setUsername(resultSet.getString("username"))
                         .setClientPrivateKey(resultSet.getString("client_private_key"))
                         .setClientPrivateKeyPassword(resultSet.getString("client_private_key_password"))
-                        .setHostPublicKey(resultSet.getString("host_public_key")));
+                        .setHostPublicKey(resultSet.getString("host_public_key"))
+                        .setDownloadThreads(PgResultSet.getInteger(resultSet, "download_threads")));
 
         if (dbConfigurationSftp == null)
             throw new PgStoredProcException("No SFTP configuration details found for configuration id " + configurationId);
@@ -173,6 +178,79 @@ public class PostgresDataLayer implements DataLayerI, IDBDigestLogger {
                     .setBatchFileId(resultSet.getInt("batch_file_id")));
     }
 
+    @Override
+    public Set<String> getDownloadedFileKeys(String configurationId, Date modifiedSince) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "SELECT b.batch_identifier, bf.file_type_identifier, bf.filename"
+                    + " FROM log.batch_file bf"
+                    + " INNER JOIN log.batch b ON b.batch_id = bf.batch_id"
+                    + " WHERE b.configuration_id = ?"
+                    + " AND bf.is_downloaded = true";
+            if (modifiedSince != null) {
+                sql += " AND bf.remote_created_date >= ?";
+            }
+
+            ps = connection.prepareStatement(sql);
+            ps.setString(1, configurationId);
+            if (modifiedSince != null) {
+                ps.setTimestamp(2, new java.sql.Timestamp(modifiedSince.getTime()));
+            }
+
+            Set<String> ret = new HashSet<>();
+
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                int col = 1;
+                String batchIdentifier = rs.getString(col++);
+                String fileTypeIdentifier = rs.getString(col++);
+                String filename = rs.getString(col++);
+                ret.add(KnownFileIndex.createKey(batchIdentifier, fileTypeIdentifier, filename));
+            }
+
+            return ret;
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
+    @Override
+    public Set<String> getNotDownloadedFilenames(String configurationId) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "SELECT bf.filename"
+                    + " FROM log.batch_file bf"
+                    + " INNER JOIN log.batch b ON b.batch_id = bf.batch_id"
+                    + " WHERE b.configuration_id = ?"
+                    + " AND bf.is_downloaded = false"
+                    + " AND coalesce(bf.is_deleted, false) = false";
+
+            ps = connection.prepareStatement(sql);
+            ps.setString(1, configurationId);
+
+            Set<String> ret = new HashSet<>();
+
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                ret.add(rs.getString(1));
+            }
+
+            return ret;
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
     @Override
     public void setFileAsDownloaded(int batchFileId, boolean downloaded) throws Exception {
         Connection connection = getConnection();
@@ -201,6 +279,108 @@ public class PostgresDataLayer implements DataLayerI, IDBDigestLogger {
         }
     }
 
+    @Override
+    public void setFileContentHash(int batchFileId, String contentHash) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "UPDATE log.batch_file SET content_hash = ? WHERE batch_file_id = ?;";
+
+            ps = connection.prepareStatement(sql);
+
+            int col = 1;
+            ps.setString(col++, contentHash);
+            ps.setInt(col++, batchFileId);
+
+            ps.executeUpdate();
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
+    @Override
+    public List<String> findFilesWithContentHash(String configurationId, String contentHash, int excludeBatchFileId) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "SELECT b.batch_identifier, bf.filename"
+                    + " FROM log.batch_file bf"
+                    + " INNER JOIN log.batch b ON b.batch_id = bf.batch_id"
+                    + " WHERE bf.content_hash = ?"
+                    + " AND b.configuration_id = ?"
+                    + " AND bf.batch_file_id != ?";
+
+            ps = connection.prepareStatement(sql);
+
+            int col = 1;
+            ps.setString(col++, contentHash);
+            ps.setString(col++, configurationId);
+            ps.setInt(col++, excludeBatchFileId);
+
+            List<String> ret = new ArrayList<>();
+
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                col = 1;
+                String batchIdentifier = rs.getString(col++);
+                String filename = rs.getString(col++);
+                ret.add(batchIdentifier + "/" + filename);
+            }
+
+            return ret;
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
+    /**
+     * returns the saved content hash of each downloaded file in the batch, by filename, for those that have one
+     */
+    @Override
+    public Map<String, String> getFileContentHashes(int batchId) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "SELECT filename, content_hash"
+                    + " FROM log.batch_file"
+                    + " WHERE batch_id = ?"
+                    + " AND is_downloaded = true"
+                    + " AND coalesce(is_deleted, false) = false"
+                    + " AND content_hash IS NOT NULL";
+
+            ps = connection.prepareStatement(sql);
+
+            int col = 1;
+            ps.setInt(col++, batchId);
+
+            Map<String, String> ret = new HashMap<>();
+
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                col = 1;
+                String filename = rs.getString(col++);
+                String contentHash = rs.getString(col++);
+                ret.put(filename, contentHash);
+            }
+
+            return ret;
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
     @Override
     public void setFileAsDeleted(BatchFile batchFile) throws Exception {
         Connection connection = getConnection();
@@ -519,6 +699,88 @@ public class PostgresDataLayer implements DataLayerI, IDBDigestLogger {
 
 
 
+    @Override
+    public Map<String, String> getBatchStageCheckpoints(int batchId) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "SELECT stage, detail FROM log.batch_stage_checkpoint WHERE batch_id = ?";
+
+            ps = connection.prepareStatement(sql);
+            ps.setInt(1, batchId);
+
+            Map<String, String> ret = new HashMap<>();
+
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                String stage = rs.getString(1);
+                String detail = rs.getString(2);
+                ret.put(stage, detail);
+            }
+
+            return ret;
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
+    @Override
+    public void addBatchStageCheckpoint(int batchId, String stage, String detail) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "INSERT INTO log.batch_stage_checkpoint (batch_id, stage, detail, completed_date) VALUES (?, ?, ?, ?)"
+                    + " ON CONFLICT (batch_id, stage) DO UPDATE SET"
+                    + " detail = EXCLUDED.detail,"
+                    + " completed_date = EXCLUDED.completed_date";
+
+            ps = connection.prepareStatement(sql);
+
+            int col = 1;
+            ps.setInt(col++, batchId);
+            ps.setString(col++, stage);
+            ps.setString(col++, detail);
+            ps.setTimestamp(col++, new java.sql.Timestamp(new Date().getTime()));
+
+            ps.executeUpdate();
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
+    @Override
+    public void deleteBatchStageCheckpoints(int batchId, String stagePrefix) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "DELETE FROM log.batch_stage_checkpoint WHERE batch_id = ?";
+            if (stagePrefix != null) {
+                sql += " AND stage LIKE ?";
+            }
+
+            ps = connection.prepareStatement(sql);
+            ps.setInt(1, batchId);
+            if (stagePrefix != null) {
+                ps.setString(2, stagePrefix + "%");
+            }
+            ps.executeUpdate();
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
     public List<BatchSplit> getBatchSplitsForBatch(int queryBatchId) throws Exception {
         Connection connection = null;
 
@@ -706,6 +968,54 @@ public class PostgresDataLayer implements DataLayerI, IDBDigestLogger {
         }
     }
 
+    @Override
+    public List<ConfigurationPollingAttempt> getPollingAttemptsWithDownloads(String configurationId, Date since) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "SELECT configuration_id, attempt_started, attempt_finished, exception_text, files_downloaded,"
+                    + " batches_completed, batch_splits_notified_ok, batch_splits_notified_failure"
+                    + " FROM log.configuration_polling_attempt"
+                    + " WHERE configuration_id = ?"
+                    + " AND attempt_started >= ?"
+                    + " AND files_downloaded > 0"
+                    + " ORDER BY attempt_started";
+
+            ps = connection.prepareStatement(sql);
+
+            int col = 1;
+            ps.setString(col++, configurationId);
+            ps.setTimestamp(col++, new java.sql.Timestamp(since.getTime()));
+
+            List<ConfigurationPollingAttempt> ret = new ArrayList<>();
+
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+
+                col = 1;
+
+                ConfigurationPollingAttempt attempt = new ConfigurationPollingAttempt();
+                attempt.setConfigurationId(rs.getString(col++));
+                attempt.setAttemptStarted(new Date(rs.getTimestamp(col++).getTime()));
+                attempt.setAttemptFinished(new Date(rs.getTimestamp(col++).getTime()));
+                attempt.setErrorText(rs.getString(col++));
+                attempt.setFilesDownloaded(rs.getInt(col++));
+                attempt.setBatchesCompleted(rs.getInt(col++));
+                attempt.setBatchSplitsNotifiedOk(rs.getInt(col++));
+                attempt.setBatchSplitsNotifiedFailure(rs.getInt(col++));
+                ret.add(attempt);
+            }
+
+            return ret;
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
     @Override
     public void savePollingAttempt(ConfigurationPollingAttempt attempt) throws Exception {
         Connection connection = getConnection();
@@ -743,6 +1053,71 @@ public class PostgresDataLayer implements DataLayerI, IDBDigestLogger {
     }
 
 
+    @Override
+    public RemoteListingWatermark getRemoteListingWatermark(String configurationId) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "SELECT configuration_id, last_modified, last_full_listing"
+                    + " FROM log.remote_listing_watermark"
+                    + " WHERE configuration_id = ?";
+
+            ps = connection.prepareStatement(sql);
+
+            ps.setString(1, configurationId);
+
+            ResultSet rs = ps.executeQuery();
+            if (rs.next()) {
+
+                int col = 1;
+
+                RemoteListingWatermark ret = new RemoteListingWatermark();
+                ret.setConfigurationId(rs.getString(col++));
+                ret.setLastModified(new Date(rs.getTimestamp(col++).getTime()));
+                ret.setLastFullListing(new Date(rs.getTimestamp(col++).getTime()));
+                return ret;
+
+            } else {
+                return null;
+            }
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
+    @Override
+    public void saveRemoteListingWatermark(RemoteListingWatermark watermark) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "INSERT INTO log.remote_listing_watermark"
+                    + " (configuration_id, last_modified, last_full_listing)"
+                    + " VALUES (?, ?, ?)"
+                    + " ON CONFLICT (configuration_id) DO UPDATE SET"
+                    + " last_modified = EXCLUDED.last_modified,"
+                    + " last_full_listing = EXCLUDED.last_full_listing";
+
+            ps = connection.prepareStatement(sql);
+
+            int col = 1;
+            ps.setString(col++, watermark.getConfigurationId());
+            ps.setTimestamp(col++, new Timestamp(watermark.getLastModified().getTime()));
+            ps.setTimestamp(col++, new Timestamp(watermark.getLastFullListing().getTime()));
+
+            ps.executeUpdate();
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
     @Override
     public Set<String> getAdastraOdsCodes(String configurationId, String fileNameOrgCode) throws Exception {
         Connection connection = getConnection();
@@ -816,6 +1191,13 @@ public class PostgresDataLayer implements DataLayerI, IDBDigestLogger {
             ps.close();
             ps = null;
 
+            sql = "DELETE FROM log.batch_stage_checkpoint WHERE batch_id = ?";
+            ps = connection.prepareStatement(sql);
+            ps.setInt(1, batchId);
+            ps.executeUpdate();
+            ps.close();
+            ps = null;
+
             sql = "DELETE FROM log.batch_split WHERE batch_id = ?";
             ps = connection.prepareStatement(sql);
             ps.setInt(1, batchId);
@@ -958,4 +1340,119 @@ public class PostgresDataLayer implements DataLayerI, IDBDigestLogger {
         conn.setAutoCommit(true);
         return conn;
     }
+
+    /**
+     * takes or renews the lease on a configuration, if it's not held by another instance or the other instance's
+     * lease has expired. The DB clock is used for the expiry so it doesn't matter if servers' clocks differ.
+     */
+    @Override
+    public boolean acquireConfigurationLease(String configurationId, String instanceName, int leaseSeconds) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement psUpdate = null;
+        PreparedStatement psInsert = null;
+        try {
+            String sql = "UPDATE configuration.configuration_lease"
+                    + " SET instance_name = ?, lease_expires = now() + (? * interval '1 second')"
+                    + " WHERE configuration_id = ?"
+                    + " AND (instance_name = ? OR lease_expires < now())";
+
+            psUpdate = connection.prepareStatement(sql);
+
+            int col = 1;
+            psUpdate.setString(col++, instanceName);
+            psUpdate.setInt(col++, leaseSeconds);
+            psUpdate.setString(col++, configurationId);
+            psUpdate.setString(col++, instanceName);
+
+            if (psUpdate.executeUpdate() > 0) {
+                return true;
+            }
+
+            //if nothing updated, either someone else holds it or nobody ever has
+            sql = "INSERT INTO configuration.configuration_lease (configuration_id, instance_name, lease_expires) VALUES (?, ?, now() + (? * interval '1 second'))"
+                    + " ON CONFLICT (configuration_id) DO NOTHING";
+
+            psInsert = connection.prepareStatement(sql);
+
+            col = 1;
+            psInsert.setString(col++, configurationId);
+            psInsert.setString(col++, instanceName);
+            psInsert.setInt(col++, leaseSeconds);
+
+            return psInsert.executeUpdate() > 0;
+
+        } finally {
+            if (psUpdate != null) {
+                psUpdate.close();
+            }
+            if (psInsert != null) {
+                psInsert.close();
+            }
+            connection.close();
+        }
+    }
+
+    @Override
+    public void releaseConfigurationLease(String configurationId, String instanceName) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "DELETE FROM configuration.configuration_lease WHERE configuration_id = ? AND instance_name = ?";
+
+            ps = connection.prepareStatement(sql);
+            ps.setString(1, configurationId);
+            ps.setString(2, instanceName);
+            ps.executeUpdate();
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
+    @Override
+    public void updateLeaseHeartbeat(String instanceName) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "UPDATE configuration.instance SET lease_heartbeat_date = now() WHERE instance_name = ?";
+
+            ps = connection.prepareStatement(sql);
+            ps.setString(1, instanceName);
+            ps.executeUpdate();
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
+
+    @Override
+    public int countLiveLeaseInstances(String leasePool, int timeoutSeconds) throws Exception {
+        Connection connection = getConnection();
+        PreparedStatement ps = null;
+        try {
+            String sql = "SELECT COUNT(1) FROM configuration.instance"
+                    + " WHERE lease_pool = ?"
+                    + " AND lease_heartbeat_date > now() - (? * interval '1 second')";
+
+            ps = connection.prepareStatement(sql);
+            ps.setString(1, leasePool);
+            ps.setInt(2, timeoutSeconds);
+
+            ResultSet rs = ps.executeQuery();
+            rs.next();
+            return rs.getInt(1);
+
+        } finally {
+            if (ps != null) {
+                ps.close();
+            }
+            connection.close();
+        }
+    }
 }
@@ -1,10 +1,14 @@
 package org.endeavourhealth.sftpreader.model.db;
 
 import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.List;
 
 public class DbConfiguration {
+    private static final Logger LOG = LoggerFactory.getLogger(DbConfiguration.class);
+
     private String configurationId;
     private String configurationFriendlyName;
     private String interfaceTypeName;
@@ -121,6 +125,39 @@ public class DbConfiguration {
         return this;
     }
 
+    /**
+     * returns the value from the configuration_kvp table for the given key, or null if not set
+     */
+    public String getKvpValue(String key) {
+        if (this.kvpConfiguration == null) {
+            return null;
+        }
+        for (DbConfigurationKvp dbConfigurationKvp : this.kvpConfiguration) {
+            if (dbConfigurationKvp.getKey().equals(key)) {
+                return dbConfigurationKvp.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * returns the integer value from the configuration_kvp table for the given key, or the default if not set. An
+     * invalid value is logged and the default used, so one bad setting can't stop the configuration from running.
+     */
+    public int getKvpInt(String key, int defaultValue) {
+        String s = getKvpValue(key);
+        if (s == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException ex) {
+            LOG.warn("Invalid value [" + s + "] for " + key + " for configuration " + configurationId + " so using default " + defaultValue);
+            return defaultValue;
+        }
+    }
+
     public String getSoftwareVersion() {
         return softwareVersion;
     }
@@ -8,6 +8,7 @@ public class DbConfigurationSftp {
     private String clientPrivateKey;
     private String clientPrivateKeyPassword;
     private String hostPublicKey;
+    private Integer downloadThreads;
 
     public String getHostname() {
         return hostname;
@@ -71,4 +72,13 @@ public class DbConfigurationSftp {
         this.hostPublicKey = hostPublicKey;
         return this;
     }
+
+    public Integer getDownloadThreads() {
+        return downloadThreads;
+    }
+
+    public DbConfigurationSftp setDownloadThreads(Integer downloadThreads) {
+        this.downloadThreads = downloadThreads;
+        return this;
+    }
 }
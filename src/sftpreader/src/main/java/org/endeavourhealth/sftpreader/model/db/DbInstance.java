@@ -5,6 +5,9 @@ import java.util.List;
 public class DbInstance {
     private String instanceName;
     private Integer httpManagementPort;
+    private Integer maxConcurrentTasks;
+    private String leasePool;
+    private Integer maxDownloadKbPerSecond;
     private List<String> configurationIds;
     //private DbInstanceSlack slackConfiguration;
     private DbInstanceEds edsConfiguration;
@@ -27,6 +30,33 @@ public class DbInstance {
         return this;
     }
 
+    public Integer getMaxConcurrentTasks() {
+        return maxConcurrentTasks;
+    }
+
+    public DbInstance setMaxConcurrentTasks(Integer maxConcurrentTasks) {
+        this.maxConcurrentTasks = maxConcurrentTasks;
+        return this;
+    }
+
+    public String getLeasePool() {
+        return leasePool;
+    }
+
+    public DbInstance setLeasePool(String leasePool) {
+        this.leasePool = leasePool;
+        return this;
+    }
+
+    public Integer getMaxDownloadKbPerSecond() {
+        return maxDownloadKbPerSecond;
+    }
+
+    public DbInstance setMaxDownloadKbPerSecond(Integer maxDownloadKbPerSecond) {
+        this.maxDownloadKbPerSecond = maxDownloadKbPerSecond;
+        return this;
+    }
+
     public List<String> getConfigurationIds() {
         return configurationIds;
     }
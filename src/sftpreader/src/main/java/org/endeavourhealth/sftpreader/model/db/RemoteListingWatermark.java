@@ -0,0 +1,36 @@
+package org.endeavourhealth.sftpreader.model.db;
+
+import java.util.Date;
+
+public class RemoteListingWatermark {
+    private String configurationId;
+    private Date lastModified;
+    private Date lastFullListing;
+
+    public RemoteListingWatermark() {
+    }
+
+    public String getConfigurationId() {
+        return configurationId;
+    }
+
+    public void setConfigurationId(String configurationId) {
+        this.configurationId = configurationId;
+    }
+
+    public Date getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(Date lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    public Date getLastFullListing() {
+        return lastFullListing;
+    }
+
+    public void setLastFullListing(Date lastFullListing) {
+        this.lastFullListing = lastFullListing;
+    }
+}
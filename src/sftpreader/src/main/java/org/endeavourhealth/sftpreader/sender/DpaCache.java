@@ -0,0 +1,111 @@
+package org.endeavourhealth.sftpreader.sender;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.endeavourhealth.common.config.ConfigManager;
+import org.endeavourhealth.common.utility.MetricsHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * caches the results of DPA checks by organisation, so we don't call the Messaging API to check the
+ * DPA before every single batch split when an organisation has lots queued up. Organisations without a DPA
+ * are cached for a shorter time, so we pick up a new DPA reasonably quickly. The TTLs can be set using the
+ * optional dpa_check_cache config record, e.g. {"ttl_seconds": 3600, "negative_ttl_seconds": 300}
+ */
+public class DpaCache {
+    private static final Logger LOG = LoggerFactory.getLogger(DpaCache.class);
+
+    private static final String CONFIG_NAME = "dpa_check_cache";
+    private static final int DEFAULT_TTL_SECONDS = 60 * 60;
+    private static final int DEFAULT_NEGATIVE_TTL_SECONDS = 5 * 60;
+
+    private static DpaCache instance = null;
+
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final Map<String, CachedResult> cache = new ConcurrentHashMap<>();
+
+    private DpaCache() {
+
+        JsonNode json = null;
+        try {
+            json = ConfigManager.getConfigurationAsJson(CONFIG_NAME);
+        } catch (Exception ex) {
+            LOG.warn("Failed to read " + CONFIG_NAME + " config so using defaults", ex);
+        }
+
+        int ttlSeconds = DEFAULT_TTL_SECONDS;
+        int negativeTtlSeconds = DEFAULT_NEGATIVE_TTL_SECONDS;
+        if (json != null) {
+            if (json.has("ttl_seconds")) {
+                ttlSeconds = json.get("ttl_seconds").asInt();
+            }
+            if (json.has("negative_ttl_seconds")) {
+                negativeTtlSeconds = json.get("negative_ttl_seconds").asInt();
+            }
+        }
+
+        LOG.info("Caching DPA checks for " + ttlSeconds + "s (or " + negativeTtlSeconds + "s if no DPA)");
+        this.ttlMillis = ttlSeconds * 1000L;
+        this.negativeTtlMillis = negativeTtlSeconds * 1000L;
+    }
+
+    public static synchronized DpaCache instance() {
+        if (instance == null) {
+            instance = new DpaCache();
+        }
+        return instance;
+    }
+
+    /**
+     * returns whether the organisation has a DPA, only calling the Messaging API if we don't have an unexpired result
+     */
+    public boolean checkForDpa(String organisationId, boolean useKeycloak, String messagingApiUrl) throws Exception {
+
+        CachedResult cached = cache.get(organisationId);
+        if (cached != null
+                && cached.getExpiry() > System.currentTimeMillis()) {
+            MetricsHelper.recordEvent("dpa-cache.hit");
+            return cached.isHasDpa();
+        }
+
+        MetricsHelper.recordEvent("dpa-cache.miss");
+        boolean hasDpa = DpaCheck.checkForDpa(organisationId, useKeycloak, messagingApiUrl);
+
+        long ttl = hasDpa ? ttlMillis : negativeTtlMillis;
+        cache.put(organisationId, new CachedResult(hasDpa, System.currentTimeMillis() + ttl));
+
+        return hasDpa;
+    }
+
+    /**
+     * removes any cached result for the organisation, so the next check goes to the Messaging API
+     */
+    public void invalidate(String organisationId) {
+        if (cache.remove(organisationId) != null) {
+            LOG.debug("Invalidated cached DPA check for " + organisationId);
+            MetricsHelper.recordEvent("dpa-cache.invalidated");
+        }
+    }
+
+    static class CachedResult {
+        private final boolean hasDpa;
+        private final long expiry;
+
+        CachedResult(boolean hasDpa, long expiry) {
+            this.hasDpa = hasDpa;
+            this.expiry = expiry;
+        }
+
+        public boolean isHasDpa() {
+            return hasDpa;
+        }
+
+        public long getExpiry() {
+            return expiry;
+        }
+    }
+}
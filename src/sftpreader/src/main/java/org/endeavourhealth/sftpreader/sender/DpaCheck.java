@@ -2,14 +2,12 @@ package org.endeavourhealth.sftpreader.sender;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import org.apache.commons.io.IOUtils;
-import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
-import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.endeavourhealth.common.cache.ObjectMapperPool;
 import org.endeavourhealth.common.config.ConfigManager;
 import org.endeavourhealth.common.security.keycloak.client.KeycloakClient;
@@ -43,15 +41,11 @@ public class DpaCheck {
         String dpaUrl = prefix + "/dsm/hasDPA/" + organisationId;
         LOG.trace("DPA check URL: " + dpaUrl);
 
-        //use the same timeouts as used by the regular calls to the Messaging API
-        RequestConfig requestConfig = RequestConfig
-                .custom()
-                .setConnectTimeout(EdsSender.HTTP_REQUEST_TIMEOUT_MILLIS)
-                .setSocketTimeout(EdsSender.HTTP_REQUEST_TIMEOUT_MILLIS)
-                .setConnectionRequestTimeout(EdsSender.HTTP_REQUEST_TIMEOUT_MILLIS)
-                .build();
+        //use the same pooled client as the regular calls to the Messaging API, so we re-use its connections
+        MessagingApiHttpClient client = MessagingApiHttpClient.instance();
+        CloseableHttpClient httpClient = client.getHttpClient();
 
-        try (CloseableHttpClient httpClient = HttpClientBuilder.create().setDefaultRequestConfig(requestConfig).build()) {
+        try {
 
             HttpGet httpGet = new HttpGet(dpaUrl);
 
@@ -60,15 +54,18 @@ public class DpaCheck {
                 httpGet.addHeader(KeycloakClient.instance().getAuthorizationHeader());
             }
 
-            HttpResponse response = httpClient.execute(httpGet);
-
-            int statusCode = response.getStatusLine().getStatusCode();
-            //String statusLine = response.getStatusLine().toString();
+            int statusCode;
             String responseBody = null;
 
-            if (response.getEntity() != null) {
-                if (response.getEntity().getContent() != null) {
-                    responseBody = IOUtils.toString(response.getEntity().getContent(), "UTF-8");
+            //the response must be closed to return the connection to the pool
+            try (CloseableHttpResponse response = httpClient.execute(httpGet)) {
+                statusCode = response.getStatusLine().getStatusCode();
+                //String statusLine = response.getStatusLine().toString();
+
+                if (response.getEntity() != null) {
+                    if (response.getEntity().getContent() != null) {
+                        responseBody = IOUtils.toString(response.getEntity().getContent(), "UTF-8");
+                    }
                 }
             }
 
@@ -83,6 +80,9 @@ public class DpaCheck {
                 LOG.error("Received response: " + responseBody);
                 throw new Exception("HTTP " + statusCode + " checking for DPA for " + organisationId);
             }
+
+        } finally {
+            client.recordPoolMetrics();
         }
     }
 }
@@ -4,13 +4,11 @@ import com.google.common.base.Charsets;
 import com.google.common.io.Resources;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
-import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.endeavourhealth.common.security.keycloak.client.KeycloakClient;
 import org.endeavourhealth.core.database.dal.audit.models.HeaderKeys;
 
@@ -56,14 +54,10 @@ public class EdsSender {
                                               boolean isBulk, boolean hasPatientData, Long fileTotalSize,
                                               Date extractDate, Date extractCutoff) throws EdsSenderHttpErrorResponseException, IOException
     {
-        RequestConfig requestConfig = RequestConfig
-                .custom()
-                .setConnectTimeout(HTTP_REQUEST_TIMEOUT_MILLIS)
-                .setSocketTimeout(HTTP_REQUEST_TIMEOUT_MILLIS)
-                .setConnectionRequestTimeout(HTTP_REQUEST_TIMEOUT_MILLIS)
-                .build();
-
-        try (CloseableHttpClient httpClient = HttpClientBuilder.create().setDefaultRequestConfig(requestConfig).build()) {
+        MessagingApiHttpClient client = MessagingApiHttpClient.instance();
+        CloseableHttpClient httpClient = client.getHttpClient();
+
+        try {
             HttpPost httpPost = new HttpPost(edsUrl);
 
             //add the headers to our HTTP POST
@@ -91,15 +85,19 @@ public class EdsSender {
             httpPost.addHeader("Content-Type", "text/xml");
             httpPost.setEntity(new ByteArrayEntity(outboundMessage.getBytes()));
 
-            HttpResponse response = httpClient.execute(httpPost);
-
-            int statusCode = response.getStatusLine().getStatusCode();
-            String statusLine = response.getStatusLine().toString();
+            int statusCode;
+            String statusLine;
             String responseBody = null;
 
-            if (response.getEntity() != null)
-                if (response.getEntity().getContent() != null)
-                    responseBody = IOUtils.toString(response.getEntity().getContent(), "UTF-8");
+            //the response must be closed to return the connection to the pool
+            try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
+                statusCode = response.getStatusLine().getStatusCode();
+                statusLine = response.getStatusLine().toString();
+
+                if (response.getEntity() != null)
+                    if (response.getEntity().getContent() != null)
+                        responseBody = IOUtils.toString(response.getEntity().getContent(), "UTF-8");
+            }
 
             EdsSenderResponse edsSenderResponse = new EdsSenderResponse()
                     .setHttpStatusCode(statusCode)
@@ -112,6 +110,9 @@ public class EdsSender {
             }
 
             return edsSenderResponse;
+
+        } finally {
+            client.recordPoolMetrics();
         }
     }
 
@@ -0,0 +1,121 @@
+package org.endeavourhealth.sftpreader.sender;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.endeavourhealth.common.config.ConfigManager;
+import org.endeavourhealth.common.utility.MetricsHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a single HTTP client, shared by all calls to the Messaging API, that keeps connections alive in a pool
+ * so we're not doing a new TCP and TLS handshake for every DPA check and notification. The pool can be
+ * tuned using the optional messaging_api_http_client config record, e.g.
+ * {"max_per_route": 20, "max_total": 50, "connection_ttl_seconds": 300, "idle_eviction_seconds": 60}
+ */
+public class MessagingApiHttpClient {
+    private static final Logger LOG = LoggerFactory.getLogger(MessagingApiHttpClient.class);
+
+    private static final String CONFIG_NAME = "messaging_api_http_client";
+    private static final int DEFAULT_MAX_PER_ROUTE = 10;
+    private static final int DEFAULT_MAX_TOTAL = 20;
+    private static final int DEFAULT_CONNECTION_TTL_SECONDS = 5 * 60;
+    private static final int DEFAULT_IDLE_EVICTION_SECONDS = 60;
+
+    private static MessagingApiHttpClient instance = null;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+
+    private MessagingApiHttpClient() {
+
+        JsonNode json = null;
+        try {
+            json = ConfigManager.getConfigurationAsJson(CONFIG_NAME);
+        } catch (Exception ex) {
+            LOG.warn("Failed to read " + CONFIG_NAME + " config so using defaults", ex);
+        }
+        int maxPerRoute = getConfigInt(json, "max_per_route", DEFAULT_MAX_PER_ROUTE);
+        int maxTotal = getConfigInt(json, "max_total", DEFAULT_MAX_TOTAL);
+        int connectionTtlSeconds = getConfigInt(json, "connection_ttl_seconds", DEFAULT_CONNECTION_TTL_SECONDS);
+        int idleEvictionSeconds = getConfigInt(json, "idle_eviction_seconds", DEFAULT_IDLE_EVICTION_SECONDS);
+
+        LOG.info("Creating Messaging API HTTP client with max per route " + maxPerRoute + ", max total " + maxTotal
+                + ", connection TTL " + connectionTtlSeconds + "s and idle eviction " + idleEvictionSeconds + "s");
+
+        //the TTL means we'll periodically reconnect, so we follow any load balancer or DNS changes
+        this.connectionManager = new PoolingHttpClientConnectionManager(connectionTtlSeconds, TimeUnit.SECONDS);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        connectionManager.setMaxTotal(Math.max(maxTotal, maxPerRoute));
+
+        //and check a connection that's been idle is still alive before re-using it
+        connectionManager.setValidateAfterInactivity(2 * 1000);
+
+        RequestConfig requestConfig = RequestConfig
+                .custom()
+                .setConnectTimeout(EdsSender.HTTP_REQUEST_TIMEOUT_MILLIS)
+                .setSocketTimeout(EdsSender.HTTP_REQUEST_TIMEOUT_MILLIS)
+                .setConnectionRequestTimeout(EdsSender.HTTP_REQUEST_TIMEOUT_MILLIS)
+                .build();
+
+        this.httpClient = HttpClientBuilder
+                .create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(idleEvictionSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    public static synchronized MessagingApiHttpClient instance() {
+        if (instance == null) {
+            instance = new MessagingApiHttpClient();
+        }
+        return instance;
+    }
+
+    /**
+     * the returned client must not be closed by the caller, although responses from it must be,
+     * so the connection is returned to the pool
+     */
+    public CloseableHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * records how many connections are in use, waited for and free in the pool
+     */
+    public void recordPoolMetrics() {
+        PoolStats stats = connectionManager.getTotalStats();
+        MetricsHelper.recordValue("messaging-api-http.pool-leased", stats.getLeased());
+        MetricsHelper.recordValue("messaging-api-http.pool-pending", stats.getPending());
+        MetricsHelper.recordValue("messaging-api-http.pool-available", stats.getAvailable());
+    }
+
+    public static synchronized void shutdown() {
+        if (instance == null) {
+            return;
+        }
+
+        try {
+            instance.httpClient.close();
+        } catch (Exception ex) {
+            LOG.error("Error closing Messaging API HTTP client", ex);
+        }
+        instance = null;
+    }
+
+    private static int getConfigInt(JsonNode json, String field, int defaultValue) {
+        if (json == null
+                || !json.has(field)) {
+            return defaultValue;
+        }
+        return json.get(field).asInt();
+    }
+}
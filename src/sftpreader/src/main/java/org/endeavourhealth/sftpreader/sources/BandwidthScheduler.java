@@ -0,0 +1,231 @@
+package org.endeavourhealth.sftpreader.sources;
+
+import org.endeavourhealth.common.utility.MetricsHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.*;
+
+/**
+ * shares the download bandwidth of this instance between the files being downloaded at the same time, so a few
+ * large EMIS or TPP downloads don't starve everything else. Each download is throttled using its own token bucket,
+ * with the rates re-calculated whenever a download starts or finishes, so that:
+ *  - the total is kept under the instance-wide limit (if set)
+ *  - the bandwidth is shared between downloads in proportion to their configuration's weight
+ *  - no configuration goes over its own limit (if set), with any unused share going to the others
+ *
+ * Small files get a priority lane, so they're never stuck behind multi-GB transfers: while they're downloading they
+ * get many times the share of a large file of the same weight. They still count towards the instance and
+ * configuration limits, since many small files can use as much bandwidth as one large one.
+ */
+public class BandwidthScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(BandwidthScheduler.class);
+
+    private static final long SMALL_FILE_BYTES = 10 * 1024 * 1024;
+    private static final int SMALL_FILE_PRIORITY = 10; //how many times a large file's share a small file gets
+
+    private static BandwidthScheduler instance = new BandwidthScheduler(null);
+
+    private final Long globalBytesPerSecond; //null = unlimited
+    private final Set<ThrottledInputStream> activeStreams = new HashSet<>();
+
+    private BandwidthScheduler(Long globalBytesPerSecond) {
+        this.globalBytesPerSecond = globalBytesPerSecond;
+    }
+
+    public static synchronized void initialise(Integer maxDownloadKbPerSecond) {
+        Long globalBytesPerSecond = null;
+        if (maxDownloadKbPerSecond != null
+                && maxDownloadKbPerSecond.intValue() > 0) {
+            globalBytesPerSecond = new Long(maxDownloadKbPerSecond.longValue() * 1024L);
+            LOG.info("Limiting total download bandwidth to " + maxDownloadKbPerSecond + " KB/s");
+        }
+        instance = new BandwidthScheduler(globalBytesPerSecond);
+    }
+
+    public static synchronized BandwidthScheduler instance() {
+        return instance;
+    }
+
+    /**
+     * wraps the stream of a file being downloaded so it's throttled to its share of the bandwidth. The weight
+     * and limit are for the configuration the file is being downloaded for, and the limit is shared between all
+     * files being downloaded for that configuration at once. Files smaller than 10MB (or the remaining part of a
+     * resumed download) are given priority.
+     */
+    public InputStream throttle(InputStream inputStream, String configurationId, int weight, Long configurationBytesPerSecond, long fileSizeBytes) {
+
+        //if there's nothing to limit, don't bother tracking it
+        if (globalBytesPerSecond == null
+                && configurationBytesPerSecond == null) {
+            return inputStream;
+        }
+
+        //small files get a bigger share, rather than bypassing the limits, so they're quick without going over them
+        int effectiveWeight = Math.max(1, weight);
+        if (fileSizeBytes >= 0
+                && fileSizeBytes < SMALL_FILE_BYTES) {
+            effectiveWeight *= SMALL_FILE_PRIORITY;
+        }
+
+        ThrottledInputStream ret = new ThrottledInputStream(inputStream, configurationId, effectiveWeight, configurationBytesPerSecond);
+        register(ret);
+        return ret;
+    }
+
+    private synchronized void register(ThrottledInputStream stream) {
+        activeStreams.add(stream);
+        rebalance();
+    }
+
+    private synchronized void unregister(ThrottledInputStream stream) {
+        if (activeStreams.remove(stream)) {
+            rebalance();
+        }
+    }
+
+    /**
+     * works out the rate for each active download, giving any configuration that's limited its limit (if that's
+     * less than its fair share) and dividing what's left between the rest by weight
+     */
+    private void rebalance() {
+
+        //a configuration's limit is split across all its active downloads by weight, so small files get priority within it too
+        Map<String, Integer> weightsByConfiguration = new HashMap<>();
+        for (ThrottledInputStream stream : activeStreams) {
+            weightsByConfiguration.merge(stream.getConfigurationId(), stream.getWeight(), Integer::sum);
+        }
+
+        double remainingRate = globalBytesPerSecond != null ? globalBytesPerSecond.doubleValue() : Double.POSITIVE_INFINITY;
+        List<ThrottledInputStream> remaining = new ArrayList<>(activeStreams);
+
+        boolean changed = true;
+        while (changed && !remaining.isEmpty()) {
+            changed = false;
+
+            double totalWeight = 0;
+            for (ThrottledInputStream stream : remaining) {
+                totalWeight += stream.getWeight();
+            }
+
+            Iterator<ThrottledInputStream> it = remaining.iterator();
+            while (it.hasNext()) {
+                ThrottledInputStream stream = it.next();
+                Long configurationLimit = stream.getConfigurationBytesPerSecond();
+                if (configurationLimit == null) {
+                    continue;
+                }
+
+                double fairShare = remainingRate * stream.getWeight() / totalWeight;
+                double limit = configurationLimit.doubleValue() * stream.getWeight() / weightsByConfiguration.get(stream.getConfigurationId()).intValue();
+                if (limit < fairShare) {
+                    stream.setBytesPerSecond(limit);
+                    remainingRate -= limit;
+                    it.remove();
+                    changed = true;
+                }
+            }
+
+            if (!changed) {
+                for (ThrottledInputStream stream : remaining) {
+                    double fairShare = remainingRate * stream.getWeight() / totalWeight;
+                    stream.setBytesPerSecond(Double.isInfinite(fairShare) ? 0 : fairShare);
+                }
+            }
+        }
+
+        MetricsHelper.recordValue("bandwidth.throttled-downloads", activeStreams.size());
+    }
+
+    /**
+     * stream that sleeps when it's read more than its rate allows, allowing up to a second's worth of burst
+     */
+    class ThrottledInputStream extends FilterInputStream {
+        private final String configurationId;
+        private final int weight;
+        private final Long configurationBytesPerSecond;
+        private volatile double bytesPerSecond = 0; //zero = unlimited
+        private double tokens = 0;
+        private long lastRefillNanos = System.nanoTime();
+        private boolean closed = false;
+
+        ThrottledInputStream(InputStream in, String configurationId, int weight, Long configurationBytesPerSecond) {
+            super(in);
+            this.configurationId = configurationId;
+            this.weight = weight;
+            this.configurationBytesPerSecond = configurationBytesPerSecond;
+        }
+
+        public String getConfigurationId() {
+            return configurationId;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public Long getConfigurationBytesPerSecond() {
+            return configurationBytesPerSecond;
+        }
+
+        public void setBytesPerSecond(double bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int ret = super.read();
+            if (ret != -1) {
+                consume(1);
+            }
+            return ret;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int ret = super.read(b, off, len);
+            if (ret > 0) {
+                consume(ret);
+            }
+            return ret;
+        }
+
+        private void consume(int bytes) throws IOException {
+            double rate = this.bytesPerSecond;
+            if (rate <= 0) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + ((now - lastRefillNanos) * rate / 1000000000d));
+            lastRefillNanos = now;
+
+            tokens -= bytes;
+            if (tokens < 0) {
+                long sleepMs = (long)(-tokens * 1000d / rate);
+                try {
+                    Thread.sleep(sleepMs);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttling download");
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!closed) {
+                    closed = true;
+                    unregister(this);
+                }
+            }
+        }
+    }
+}
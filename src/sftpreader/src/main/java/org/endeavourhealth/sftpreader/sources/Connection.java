@@ -1,9 +1,13 @@
 package org.endeavourhealth.sftpreader.sources;
 
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.endeavourhealth.sftpreader.utilities.RemoteFile;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 
 public abstract class Connection {
@@ -18,11 +22,82 @@ public abstract class Connection {
 
     public abstract void close();
 
+    /**
+     * returns true if a connection opened earlier can still be used, so it can be kept open between runs
+     */
+    public boolean isUsable() {
+        return true;
+    }
+
     public abstract List<RemoteFile> getFileList(String remotePath) throws Exception;
 
+    /**
+     * returns just the files whose names match the given wildcard pattern (using * and ?), so when only recent files
+     * are wanted, old ones in a large directory can be skipped while listing. By default, this lists everything and
+     * filters, but implementations should override if they can do better.
+     */
+    public List<RemoteFile> getFileList(String remotePath, String filenamePattern) throws Exception {
+        List<RemoteFile> ret = new ArrayList<>();
+        for (RemoteFile remoteFile : getFileList(remotePath)) {
+            if (FilenameUtils.wildcardMatch(remoteFile.getFilename(), filenamePattern)) {
+                ret.add(remoteFile);
+            }
+        }
+        return ret;
+    }
+
     // Return a single remote file
     public abstract InputStream getFile(String remotePath) throws Exception;
 
+    /**
+     * returns a single remote file, starting from the given offset, so a partial download can be resumed.
+     * By default, this just skips over the start of the file, but implementations should override if they can do better.
+     */
+    public InputStream getFile(String remotePath, long offset) throws Exception {
+        InputStream inputStream = getFile(remotePath);
+        if (offset > 0) {
+            try {
+                IOUtils.skipFully(inputStream, offset);
+            } catch (Exception ex) {
+                inputStream.close();
+                throw ex;
+            }
+        }
+        return inputStream;
+    }
+
+    /**
+     * called after listing files, to allow getFile to be called from the given number of threads at once.
+     * Streams from getFile must be closed when finished with. By default, getFile is assumed to already be thread safe.
+     */
+    public void setDownloadConcurrency(int concurrency) throws Exception {
+        //nothing to do by default
+    }
+
+    /**
+     * returns true if the connection supports moveFile and deleteRemoteFile, so downloaded files can be archived
+     */
+    public boolean supportsRemoteArchive() {
+        return false;
+    }
+
+    /**
+     * moves a remote file, creating the destination directory if it doesn't exist and replacing any file already
+     * there. Paths are in the same form as passed to getFileList. Only supported if supportsRemoteArchive returns
+     * true, otherwise an IOException is thrown.
+     */
+    public void moveFile(String remotePath, String destinationPath) throws Exception {
+        throw new IOException(getClass().getSimpleName() + " does not support moving files");
+    }
+
+    /**
+     * deletes a remote file, with the path in the same form as passed to getFileList. Only supported if
+     * supportsRemoteArchive returns true, otherwise an IOException is thrown.
+     */
+    public void deleteRemoteFile(String remotePath) throws Exception {
+        throw new IOException(getClass().getSimpleName() + " does not support deleting files");
+    }
+
     /* deleteFile, cd, mkdir methods now re-commented out,
      * put method remains uncommented for use in DataGenerator
      */
@@ -9,6 +9,7 @@ public class ConnectionDetails {
     private String clientPrivateKey;
     private String clientPrivateKeyPassword;
     private String hostPublicKey;
+    private boolean keepAlive;
 
     public String getHostname() {
         return hostname;
@@ -64,6 +65,15 @@ public class ConnectionDetails {
         return this;
     }
 
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public ConnectionDetails setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
     public String getKnownHostsString() throws IOException {
         return this.getHostname() + " " + hostPublicKey + "\n";
     }
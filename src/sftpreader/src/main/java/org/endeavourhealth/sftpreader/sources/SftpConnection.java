@@ -9,22 +9,38 @@ import org.endeavourhealth.sftpreader.utilities.RemoteFile;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.stream.Collectors;
 
 public class SftpConnection extends Connection {
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(SftpConnection.class);
 
+    //number of outstanding read requests JSch pipelines on each channel, which makes a big difference to
+    //download speeds over high latency connections (the JSch default is 16)
+    private static final int BULK_REQUESTS = 64;
+
+    //if the connection is being kept open between runs, keepalives stop it being dropped by firewalls while idle, and
+    //a server that stops responding entirely is still detected after ten minutes, as with the session timeout below
+    private static final int SERVER_ALIVE_INTERVAL_MS = 60 * 1000;
+    private static final int SERVER_ALIVE_COUNT_MAX = 10;
+
     //private ConnectionDetails connectionDetails;
     private JSch jSch;
     private Session session;
     private ChannelSftp channel;
+    private String initialDir;
+    private List<ChannelSftp> extraChannels = new ArrayList<>();
+    private BlockingQueue<ChannelSftp> downloadChannels = null;
 
     public SftpConnection(ConnectionDetails connectionDetails) {
         super(connectionDetails);
@@ -69,15 +85,26 @@ public class SftpConnection extends Connection {
         //of Emis restarting servers or something similar
         session.setTimeout(10 * 60 * 1000);
 
+        if (getConnectionDetails().isKeepAlive()) {
+            session.setServerAliveInterval(SERVER_ALIVE_INTERVAL_MS);
+            session.setServerAliveCountMax(SERVER_ALIVE_COUNT_MAX);
+        }
+
         LOG.trace("Session set up");
 
         this.session.connect();
         LOG.trace("Session connected");
 
-        this.channel = (ChannelSftp)session.openChannel("sftp");
-        this.channel.connect();
+        this.channel = openChannel();
         LOG.trace("Channel connected");
 
+        //remember where we start, so a relative remote path still works if the connection is re-used
+        try {
+            this.initialDir = channel.pwd();
+        } catch (SftpException ex) {
+            throw new SftpConnectionException("Failed to get initial directory", ex);
+        }
+
         //adding this to try to get past an error with new Emis server
         /*KnownHosts knownHosts = (KnownHosts)jSch.getHostKeyRepository();
         for (HostKey key: knownHosts.getHostKey()) {
@@ -102,6 +129,42 @@ public class SftpConnection extends Connection {
         }*/
     }
 
+    private ChannelSftp openChannel() throws JSchException {
+        ChannelSftp ret = (ChannelSftp)session.openChannel("sftp");
+        ret.connect();
+        ret.setBulkRequests(BULK_REQUESTS);
+        return ret;
+    }
+
+    /**
+     * opens extra channels over the same session, so files can be downloaded in parallel. The extra
+     * channels are moved into the same directory as the main one, since we download by file name
+     */
+    @Override
+    public void setDownloadConcurrency(int concurrency) throws JSchException, SftpException {
+
+        //if the connection is being re-used, close any channels left from last time
+        closeExtraChannels();
+
+        if (concurrency <= 1) {
+            return;
+        }
+
+        String pwd = channel.pwd();
+
+        this.downloadChannels = new LinkedBlockingQueue<>();
+        downloadChannels.add(channel);
+
+        for (int i=1; i<concurrency; i++) {
+            ChannelSftp extraChannel = openChannel();
+            extraChannel.cd(pwd);
+            extraChannels.add(extraChannel);
+        }
+        downloadChannels.addAll(extraChannels);
+
+        LOG.trace("Opened " + extraChannels.size() + " extra channels for downloading");
+    }
+
     public static class Logger implements com.jcraft.jsch.Logger {
         static java.util.Hashtable name=new java.util.Hashtable();
         static{
@@ -124,12 +187,46 @@ public class SftpConnection extends Connection {
     public List<RemoteFile> getFileList(String remotePath) throws SftpException {
 
         //an error is raised if we try to list the files without first changing into the directory
+        if (!remotePath.startsWith("/")) {
+            channel.cd(initialDir);
+        }
         channel.cd(remotePath);
 
         //trying alternatives that work on all known SFTP servers
         Vector<ChannelSftp.LsEntry> fileList = channel.ls(".");
         //Vector<ChannelSftp.LsEntry> fileList = channel.ls("\\");
 
+        return toRemoteFiles(fileList);
+    }
+
+    /**
+     * jsch matches the pattern as it reads the directory, so non-matching entries are dropped straight away
+     * rather than each being turned into a RemoteFile and parsed
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<RemoteFile> getFileList(String remotePath, String filenamePattern) throws SftpException {
+
+        if (!remotePath.startsWith("/")) {
+            channel.cd(initialDir);
+        }
+        channel.cd(remotePath);
+
+        Vector<ChannelSftp.LsEntry> fileList;
+        try {
+            fileList = channel.ls(filenamePattern);
+        } catch (SftpException ex) {
+            //some servers report nothing matching the pattern as an error rather than an empty listing
+            if (ex.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                return new ArrayList<>();
+            }
+            throw ex;
+        }
+
+        return toRemoteFiles(fileList);
+    }
+
+    private static List<RemoteFile> toRemoteFiles(Vector<ChannelSftp.LsEntry> fileList) {
         return fileList
                 .stream()
                 .filter(t -> !t.getAttrs().isDir())
@@ -160,14 +257,59 @@ public class SftpConnection extends Connection {
                 .collect(Collectors.toList());
     }*/
 
-    public InputStream getFile(String remotePath) throws SftpException {
+    public InputStream getFile(String remotePath) throws SftpException, InterruptedException {
+        return getFile(remotePath, 0);
+    }
+
+    /**
+     * uses the SFTP resume support to start reading from the offset on the server, rather than reading and discarding
+     */
+    @Override
+    public InputStream getFile(String remotePath, long offset) throws SftpException, InterruptedException {
 
         //when listing the files we change into the directory, so want to remove the path and just download by filename
         /*File f = new File(remotePath);
         String name = f.getName();*/
         String name = FilenameUtils.getName(remotePath);
 
-        return channel.get(name);
+        if (downloadChannels == null) {
+            return channel.get(name, null, offset);
+        }
+
+        //if downloading in parallel, each download needs a channel to itself until its stream is closed
+        ChannelSftp downloadChannel = downloadChannels.take();
+        try {
+            InputStream inputStream = downloadChannel.get(name, null, offset);
+            return new ChannelReleasingInputStream(inputStream, downloadChannel);
+
+        } catch (SftpException ex) {
+            downloadChannels.add(downloadChannel);
+            throw ex;
+        }
+    }
+
+    /**
+     * returns the channel for use by another download when the stream is closed
+     */
+    class ChannelReleasingInputStream extends FilterInputStream {
+        private ChannelSftp downloadChannel;
+
+        ChannelReleasingInputStream(InputStream in, ChannelSftp downloadChannel) {
+            super(in);
+            this.downloadChannel = downloadChannel;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (downloadChannel != null) {
+                    downloadChannels.add(downloadChannel);
+                    downloadChannel = null;
+                }
+            }
+        }
     }
 
     /* deleteFile, cd, mkdir methods now re-commented out,
@@ -186,11 +328,100 @@ public class SftpConnection extends Connection {
         channel.put(localPath, destinationPath);
     }
 
+    @Override
+    public boolean supportsRemoteArchive() {
+        return true;
+    }
+
+    /**
+     * listing changes the current directory, so relative paths are resolved against where we started, as getFileList does
+     */
+    @Override
+    public void moveFile(String remotePath, String destinationPath) throws SftpException {
+        String from = resolvePath(remotePath);
+        String to = resolvePath(destinationPath);
+
+        String destinationDir = to.substring(0, to.lastIndexOf('/'));
+        try {
+            channel.stat(destinationDir);
+        } catch (SftpException ex) {
+            if (ex.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                throw ex;
+            }
+            LOG.info("Creating remote directory " + destinationDir);
+            channel.mkdir(destinationDir);
+        }
+
+        //SFTP rename fails if the destination exists (e.g. a file sent again with the same name), so replace it
+        if (remoteFileExists(to)) {
+            LOG.info("Replacing existing remote file " + to);
+            channel.rm(to);
+        }
+
+        channel.rename(from, to);
+    }
+
+    private boolean remoteFileExists(String path) throws SftpException {
+        try {
+            channel.stat(path);
+            return true;
+        } catch (SftpException ex) {
+            if (ex.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                throw ex;
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public void deleteRemoteFile(String remotePath) throws SftpException {
+        channel.rm(resolvePath(remotePath));
+    }
+
+    private String resolvePath(String remotePath) {
+        if (remotePath.startsWith("/")) {
+            return remotePath;
+        }
+        return initialDir + "/" + remotePath;
+    }
+
     /* public void mkDir(String path) throws SftpException {
         channel.mkdir(path);
     } */
 
+    /**
+     * checks the session is still connected and the server still responds, using a cheap round trip
+     */
+    @Override
+    public boolean isUsable() {
+        if (session == null
+                || !session.isConnected()
+                || channel == null
+                || !channel.isConnected()) {
+            return false;
+        }
+
+        try {
+            channel.stat(initialDir);
+            return true;
+        } catch (SftpException ex) {
+            LOG.debug("SFTP connection no longer usable: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    private void closeExtraChannels() {
+        for (ChannelSftp extraChannel : extraChannels) {
+            if (extraChannel.isConnected())
+                extraChannel.disconnect();
+        }
+        extraChannels.clear();
+        downloadChannels = null;
+    }
+
     public void close() {
+        closeExtraChannels();
+
         if (channel != null && channel.isConnected())
             channel.disconnect();
 
@@ -0,0 +1,76 @@
+package org.endeavourhealth.sftpreader.sources;
+
+import org.endeavourhealth.sftpreader.utilities.RemoteFile;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * remembers the size and modified date of each remote file across consecutive listings, so a file is only
+ * downloaded once it's stopped changing for a quiet period. This stops us downloading (and then failing to decrypt)
+ * a file the supplier is still uploading. It works off the listing alone, so can be used with any type of connection.
+ *
+ * Since it's only kept in memory, a file seen for the first time after a restart is always deferred until the next
+ * listing, but this just means waiting one extra poll.
+ */
+public class UploadStabilityTracker {
+
+    private final Map<String, Observation> observations = new HashMap<>();
+
+    /**
+     * updates what we know about the files from the latest listing, forgetting about any that have gone
+     */
+    public synchronized void update(List<RemoteFile> remoteFiles) {
+        long now = System.currentTimeMillis();
+
+        Set<String> seen = new HashSet<>();
+        for (RemoteFile remoteFile : remoteFiles) {
+            String path = remoteFile.getFullPath();
+            seen.add(path);
+
+            Observation previous = observations.get(path);
+            if (previous == null
+                    || previous.getFileSizeBytes() != remoteFile.getFileSizeBytes()
+                    || !Objects.equals(previous.getLastModified(), remoteFile.getLastModified())) {
+                observations.put(path, new Observation(remoteFile.getFileSizeBytes(), remoteFile.getLastModified(), now));
+            }
+        }
+
+        observations.keySet().retainAll(seen);
+    }
+
+    /**
+     * returns true if the file has had the same size and modified date for at least the quiet period
+     */
+    public synchronized boolean isStable(RemoteFile remoteFile, long quietPeriodMs) {
+        Observation observation = observations.get(remoteFile.getFullPath());
+        if (observation == null) {
+            return false;
+        }
+        return System.currentTimeMillis() - observation.getUnchangedSince() >= quietPeriodMs;
+    }
+
+    static class Observation {
+        private final long fileSizeBytes;
+        private final LocalDateTime lastModified;
+        private final long unchangedSince;
+
+        Observation(long fileSizeBytes, LocalDateTime lastModified, long unchangedSince) {
+            this.fileSizeBytes = fileSizeBytes;
+            this.lastModified = lastModified;
+            this.unchangedSince = unchangedSince;
+        }
+
+        public long getFileSizeBytes() {
+            return fileSizeBytes;
+        }
+
+        public LocalDateTime getLastModified() {
+            return lastModified;
+        }
+
+        public long getUnchangedSince() {
+            return unchangedSince;
+        }
+    }
+}
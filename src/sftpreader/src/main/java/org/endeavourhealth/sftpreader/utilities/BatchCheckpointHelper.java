@@ -0,0 +1,125 @@
+package org.endeavourhealth.sftpreader.utilities;
+
+import org.endeavourhealth.sftpreader.model.DataLayerI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * records which processing stages have been completed for an incomplete batch, so that if the
+ * app is killed part way through a batch, the next run can pick up from where it got to rather than
+ * starting from scratch. Where a stage leaves files in the temp dir, a description of those files is stored
+ * with the checkpoint so we can tell if they're still intact before re-using them.
+ */
+public class BatchCheckpointHelper {
+    private static final Logger LOG = LoggerFactory.getLogger(BatchCheckpointHelper.class);
+
+    public static final String STAGE_UNZIPPED = "Unzipped"; //batch files copied to temp and unzipped/decrypted
+    public static final String STAGE_SPLIT_FILE = "SplitFile"; //a single file split by organisation (suffixed with file name)
+    public static final String STAGE_ORG_FILTERED = "OrgFiltered"; //an organisation's split files filtered (suffixed with org ID)
+    public static final String STAGE_ORG_UPLOADED = "OrgUploaded"; //an organisation's split files copied to storage (suffixed with org ID)
+    public static final String STAGE_BULK_DETECTED = "BulkDetected"; //all splits bulk-detected and saved to the DB
+
+    private final DataLayerI db;
+    private final int batchId;
+    private final Map<String, String> checkpoints;
+
+    public BatchCheckpointHelper(DataLayerI db, int batchId) throws Exception {
+        this.db = db;
+        this.batchId = batchId;
+        this.checkpoints = new ConcurrentHashMap<>();
+
+        //the concurrent map can't hold nulls, so use an empty detail for stages that don't have one
+        for (Map.Entry<String, String> entry : db.getBatchStageCheckpoints(batchId).entrySet()) {
+            String detail = entry.getValue();
+            checkpoints.put(entry.getKey(), detail == null ? "" : detail);
+        }
+    }
+
+    public static String stageFor(String stage, String suffix) {
+        return stage + ":" + suffix;
+    }
+
+    public boolean hasAnyCheckpoint(String stagePrefix) {
+        for (String stage : checkpoints.keySet()) {
+            if (stage.startsWith(stagePrefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isComplete(String stage) {
+        return checkpoints.containsKey(stage);
+    }
+
+    /**
+     * returns true if the stage is complete and the files it left in the given directory are as they were
+     */
+    public boolean isCompleteAndIntact(String stage, File dir, boolean recursive) {
+        String detail = checkpoints.get(stage);
+        if (detail == null) {
+            return false;
+        }
+
+        String currentDetail = describeDirectory(dir, recursive);
+        if (!detail.equals(currentDetail)) {
+            LOG.info("Checkpoint " + stage + " for batch " + batchId + " found but files have changed (" + detail + " vs " + currentDetail + ") so will be redone");
+            return false;
+        }
+
+        return true;
+    }
+
+    public void setComplete(String stage) throws Exception {
+        setComplete(stage, (String)null);
+    }
+
+    public void setComplete(String stage, File dir, boolean recursive) throws Exception {
+        setComplete(stage, describeDirectory(dir, recursive));
+    }
+
+    public void setComplete(String stage, String detail) throws Exception {
+        db.addBatchStageCheckpoint(batchId, stage, detail);
+        checkpoints.put(stage, detail == null ? "" : detail);
+    }
+
+    /**
+     * removes all checkpoints for stages starting with the given prefix
+     */
+    public void clear(String stagePrefix) throws Exception {
+        db.deleteBatchStageCheckpoints(batchId, stagePrefix);
+        checkpoints.keySet().removeIf(stage -> stage.startsWith(stagePrefix));
+    }
+
+    /**
+     * describes the files in a directory by count and total size, which is enough to tell
+     * if anything has been deleted or left half-written since the description was made
+     */
+    public static String describeDirectory(File dir, boolean recursive) {
+        long[] countAndSize = new long[2];
+        addToDescription(dir, recursive, countAndSize);
+        return "files=" + countAndSize[0] + ",bytes=" + countAndSize[1];
+    }
+
+    private static void addToDescription(File dir, boolean recursive, long[] countAndSize) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File f : files) {
+            if (f.isDirectory()) {
+                if (recursive) {
+                    addToDescription(f, recursive, countAndSize);
+                }
+            } else {
+                countAndSize[0]++;
+                countAndSize[1] += f.length();
+            }
+        }
+    }
+}
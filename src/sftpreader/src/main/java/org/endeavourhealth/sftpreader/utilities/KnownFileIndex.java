@@ -0,0 +1,57 @@
+package org.endeavourhealth.sftpreader.utilities;
+
+import org.endeavourhealth.sftpreader.SftpFile;
+import org.endeavourhealth.sftpreader.model.DataLayerI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Date;
+import java.util.Set;
+
+/**
+ * in-memory index of the files already downloaded for a configuration, loaded in a single query at the start of
+ * each run, so that listing an SFTP directory with years of old files doesn't need several DB queries per file
+ * just to find out it's been done. Only files not in the index need to be passed to addFile.
+ *
+ * It's re-loaded each run rather than kept across runs, since files can be marked as not downloaded outside
+ * of the normal download (e.g. to force a file to be copied again).
+ */
+public class KnownFileIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(KnownFileIndex.class);
+
+    private final Set<String> downloadedFiles;
+
+    private KnownFileIndex(Set<String> downloadedFiles) {
+        this.downloadedFiles = downloadedFiles;
+    }
+
+    /**
+     * loads the files downloaded for the configuration, or just those modified since the given date if not null.
+     * Files not in the index are checked against the DB anyway, so leaving out older ones is always safe.
+     */
+    public static KnownFileIndex load(DataLayerI db, String configurationId, Date modifiedSince) throws Exception {
+        long msStart = System.currentTimeMillis();
+        Set<String> downloadedFiles = db.getDownloadedFileKeys(configurationId, modifiedSince);
+        long msEnd = System.currentTimeMillis();
+
+        LOG.trace("Loaded " + downloadedFiles.size() + " downloaded files for " + configurationId
+                + (modifiedSince != null ? " modified since " + modifiedSince : "") + " in " + (msEnd - msStart) + "ms");
+        return new KnownFileIndex(downloadedFiles);
+    }
+
+    /**
+     * matches how addFile finds an existing file, i.e. by the batch it goes into, its type and its name
+     */
+    public static String createKey(String batchIdentifier, String fileTypeIdentifier, String filename) {
+        return batchIdentifier + "|" + fileTypeIdentifier + "|" + filename;
+    }
+
+    public boolean isDownloaded(SftpFile sftpFile) {
+        String key = createKey(sftpFile.getBatchIdentifier(), sftpFile.getFileTypeIdentifier(), sftpFile.getFilename());
+        return downloadedFiles.contains(key);
+    }
+
+    public int size() {
+        return downloadedFiles.size();
+    }
+}
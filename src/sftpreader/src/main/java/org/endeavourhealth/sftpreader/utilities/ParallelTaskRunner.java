@@ -0,0 +1,70 @@
+package org.endeavourhealth.sftpreader.utilities;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * runs the same bit of processing over a list of independent items (e.g. one per organisation)
+ * using a bounded number of threads, waiting for all of them to finish
+ */
+public class ParallelTaskRunner {
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelTaskRunner.class);
+
+    public interface ItemProcessor<T> {
+        void process(T item) throws Exception;
+    }
+
+    /**
+     * processes every item, using up to the given number of threads. If the thread count is one (or less) the items
+     * are processed in order on the calling thread. If any item fails, the remaining items are still processed
+     * (since they're independent) and the first exception is then thrown.
+     */
+    public static <T> void runInParallel(String threadNamePrefix, int threads, List<T> items, ItemProcessor<T> processor) throws Exception {
+
+        if (threads <= 1 || items.size() <= 1) {
+            for (T item : items) {
+                processor.process(item);
+            }
+            return;
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.min(threads, items.size()),
+                r -> new Thread(r, threadNamePrefix + "-" + threadCount.incrementAndGet()));
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (T item : items) {
+                futures.add(executorService.submit(() -> {
+                    processor.process(item);
+                    return null;
+                }));
+            }
+
+            Exception firstException = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ee) {
+                    Throwable cause = ee.getCause();
+                    LOG.error("Error in " + threadNamePrefix, cause);
+                    if (firstException == null) {
+                        firstException = (cause instanceof Exception) ? (Exception)cause : ee;
+                    }
+                }
+            }
+
+            if (firstException != null) {
+                throw firstException;
+            }
+
+        } finally {
+            executorService.shutdown();
+        }
+    }
+}
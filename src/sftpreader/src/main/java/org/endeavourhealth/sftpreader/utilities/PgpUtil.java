@@ -1,38 +1,143 @@
 package org.endeavourhealth.sftpreader.utilities;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import org.bouncycastle.openpgp.*;
 import org.bouncycastle.openpgp.operator.KeyFingerPrintCalculator;
+import org.bouncycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
 import org.bouncycastle.openpgp.operator.bc.BcPublicKeyDataDecryptorFactory;
 import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
 import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
 import org.bouncycastle.util.io.Streams;
+import org.endeavourhealth.common.config.ConfigManager;
+import org.endeavourhealth.sftpreader.model.db.DbConfigurationPgp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.security.NoSuchProviderException;
 import java.security.Security;
 import java.security.SignatureException;
-import java.util.Iterator;
+import java.util.*;
 
 @SuppressWarnings("unchecked")
 public class PgpUtil {
+    private static final Logger LOG = LoggerFactory.getLogger(PgpUtil.class);
+
+    /**
+     * the Bouncy Castle lightweight AES implementation, which is pure Java
+     */
+    public static final String DECRYPTOR_BC = "bc";
+
+    /**
+     * the JDK's AES implementation, which uses the CPU's AES instructions where available, but only supports
+     * the algorithms the JDK does (e.g. not CAST5 or Twofish)
+     */
+    public static final String DECRYPTOR_JCE = "jce";
+
+    private static final String CONFIG_NAME = "pgp_decryption";
 
     private static final int BUFFER_SIZE = 10000000; //use approx 10MB for buffered streams, as a fair balance between disk IO and memory
 
+    //the parsed keys for each configuration, so we only parse the key rings and extract the private key (which is deliberately
+    //slow) once rather than for every file. Weak keys mean anything for a configuration that's been re-loaded is dropped.
+    private static final Map<DbConfigurationPgp, PgpKeys> keyCache = new WeakHashMap<>();
+
+    private static String decryptor = null;
+
+    static {
+        if (Security.getProvider("BC") == null) {
+            Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+        }
+    }
+
+    /**
+     * decrypts using the configuration's keys, which are parsed on first use and then cached until evictKeys is called
+     */
     public static void decryptAndVerify(InputStream inputStream,
                                         String outputFileName,
-                                        String secretKey,
-                                        String secretKeyPassword,
-                                        String publicKey) throws IOException, NoSuchProviderException, PGPException, SignatureException
+                                        DbConfigurationPgp pgpConfiguration) throws IOException, NoSuchProviderException, PGPException, SignatureException
     {
-        Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+        PgpKeys keys;
+        synchronized (keyCache) {
+            keys = keyCache.get(pgpConfiguration);
+            if (keys == null) {
+                keys = new PgpKeys(pgpConfiguration.getPgpRecipientPrivateKey(), pgpConfiguration.getPgpRecipientPrivateKeyPassword(), pgpConfiguration.getPgpSenderPublicKey());
+                keyCache.put(pgpConfiguration, keys);
+            }
+        }
+
+        decryptAndVerify(inputStream, outputFileName, keys);
+    }
+
+    /**
+     * returns which implementation is used to decrypt the content, set using the optional pgp_decryption config record,
+     * e.g. {"decryptor": "jce"}, defaulting to Bouncy Castle
+     */
+    public static synchronized String getDecryptor() {
+        if (decryptor == null) {
+            String s = DECRYPTOR_BC;
+            try {
+                JsonNode json = ConfigManager.getConfigurationAsJson(CONFIG_NAME);
+                if (json != null
+                        && json.has("decryptor")) {
+                    s = json.get("decryptor").asText();
+                }
+            } catch (Exception ex) {
+                LOG.warn("Failed to read " + CONFIG_NAME + " config so using default", ex);
+            }
+
+            setDecryptor(s);
+            LOG.info("Using " + decryptor + " for PGP decryption");
+        }
+        return decryptor;
+    }
+
+    /**
+     * overrides the configured implementation, e.g. for benchmarking
+     */
+    public static synchronized void setDecryptor(String decryptor) {
+        if (!decryptor.equals(DECRYPTOR_BC)
+                && !decryptor.equals(DECRYPTOR_JCE)) {
+            throw new IllegalArgumentException("Unknown PGP decryptor " + decryptor);
+        }
+        PgpUtil.decryptor = decryptor;
+    }
+
+    private static PublicKeyDataDecryptorFactory createDecryptorFactory(PGPPrivateKey pgpPrivateKey) {
+        if (getDecryptor().equals(DECRYPTOR_JCE)) {
+            //the session key is still decrypted by Bouncy Castle, but the content by the JDK's own provider
+            return new JcePublicKeyDataDecryptorFactoryBuilder()
+                    .setProvider("BC")
+                    .setContentProvider("SunJCE")
+                    .build(pgpPrivateKey);
+        }
 
+        return new BcPublicKeyDataDecryptorFactory(pgpPrivateKey);
+    }
+
+    /**
+     * drops any cached keys for the configuration, so they're not held in memory between runs
+     */
+    public static void evictKeys(DbConfigurationPgp pgpConfiguration) {
+        PgpKeys keys;
+        synchronized (keyCache) {
+            keys = keyCache.remove(pgpConfiguration);
+        }
+        if (keys != null) {
+            keys.clear();
+        }
+    }
+
+    private static void decryptAndVerify(InputStream inputStream,
+                                         String outputFileName,
+                                         PgpKeys keys) throws IOException, NoSuchProviderException, PGPException, SignatureException
+    {
         try (InputStream fileIn = new BufferedInputStream(inputStream, BUFFER_SIZE);
-             InputStream secretKeyIn = new BufferedInputStream(new ByteArrayInputStream(secretKey.getBytes()));
-             BufferedOutputStream fileOut = new BufferedOutputStream(new FileOutputStream(outputFileName), BUFFER_SIZE);
-             InputStream publicKeyStream = new ByteArrayInputStream(publicKey.getBytes()); )
+             BufferedOutputStream fileOut = new BufferedOutputStream(new FileOutputStream(outputFileName), BUFFER_SIZE); )
         {
-            decryptAndVerify(fileIn, fileOut, secretKeyIn, secretKeyPassword, publicKeyStream);
+            decryptAndVerify(fileIn, fileOut, keys);
         }
     }
 
@@ -55,9 +160,7 @@ public class PgpUtil {
 
     private static void decryptAndVerify(InputStream fileIn,
                                          OutputStream fileOut,
-                                         InputStream secretKeyIn,
-                                         String secretKeyPassword,
-                                         InputStream publicKeyStream) throws IOException, SignatureException, PGPException, NoSuchProviderException
+                                         PgpKeys keys) throws IOException, SignatureException, PGPException, NoSuchProviderException
     {
         fileIn = PGPUtil.getDecoderStream(fileIn);
 
@@ -76,19 +179,18 @@ public class PgpUtil {
         Iterator<PGPPublicKeyEncryptedData> encryptedDataIterator = pgpEncryptedDataList.getEncryptedDataObjects();
         PGPPrivateKey pgpPrivateKey = null;
         PGPPublicKeyEncryptedData pgpPublicKeyEncryptedData = null;
-        PGPSecretKeyRingCollection pgpSecretKeyRingCollection = new PGPSecretKeyRingCollection(PGPUtil.getDecoderStream(secretKeyIn), new JcaKeyFingerprintCalculator());
 
         while (pgpPrivateKey == null && encryptedDataIterator.hasNext())
         {
             pgpPublicKeyEncryptedData = encryptedDataIterator.next();
 
-            pgpPrivateKey = findSecretKey(pgpSecretKeyRingCollection, pgpPublicKeyEncryptedData.getKeyID(), secretKeyPassword.toCharArray());
+            pgpPrivateKey = keys.getPrivateKey(pgpPublicKeyEncryptedData.getKeyID());
         }
 
         if (pgpPrivateKey == null)
             throw new IllegalArgumentException("Unable to find secret key to decrypt the message");
 
-        InputStream clear = pgpPublicKeyEncryptedData.getDataStream(new BcPublicKeyDataDecryptorFactory(pgpPrivateKey));
+        InputStream clear = pgpPublicKeyEncryptedData.getDataStream(createDecryptorFactory(pgpPrivateKey));
 
         PGPObjectFactory plainFact = new PGPObjectFactory(clear, fingerCalc);
 
@@ -120,7 +222,7 @@ public class PgpUtil {
 
                 } else {
                     //if we've got signed content, we need to generate our signature as we stream our input to disk
-                    ops = streamOutAndCalculateSignature(onePassSignatureList, publicKeyStream, fingerCalc, input, fileOut);
+                    ops = streamOutAndCalculateSignature(onePassSignatureList, keys.getPublicKeyRing(), input, fileOut);
                 }
 
                 //Streams.pipeAll(((PGPLiteralData) message).getInputStream(), fileOut);  // have to read it and keep it somewhere.
@@ -152,13 +254,11 @@ public class PgpUtil {
         fileOut.close();
     }
 
-    private static PGPOnePassSignature streamOutAndCalculateSignature(PGPOnePassSignatureList onePassSignatureList, InputStream publicKeyStream,
-                                                                      KeyFingerPrintCalculator fingerCalc, InputStream fileInput,
-                                                                      OutputStream fileOutput) throws PGPException, IOException, SignatureException {
+    private static PGPOnePassSignature streamOutAndCalculateSignature(PGPOnePassSignatureList onePassSignatureList, PGPPublicKeyRingCollection pgpRing,
+                                                                      InputStream fileInput, OutputStream fileOutput) throws PGPException, IOException, SignatureException {
 
         PGPOnePassSignature ops = onePassSignatureList.get(0);
 
-        PGPPublicKeyRingCollection pgpRing = new PGPPublicKeyRingCollection(PGPUtil.getDecoderStream(publicKeyStream), fingerCalc);
         PGPPublicKey publicKey = pgpRing.getPublicKey(ops.getKeyID());
         if (publicKey == null) {
             throw new SignatureException("Signature not found");
@@ -196,4 +296,58 @@ public class PgpUtil {
 
         return pgpSecKey.extractPrivateKey(new JcePBESecretKeyDecryptorBuilder().setProvider("BC").build(pass));
     }
+
+    /**
+     * the parsed keys for decrypting and verifying, with private keys only extracted from the key ring when first needed
+     */
+    static class PgpKeys {
+        private final String secretKey;
+        private final String publicKey;
+        private char[] secretKeyPassword;
+        private PGPSecretKeyRingCollection secretKeyRing = null;
+        private PGPPublicKeyRingCollection publicKeyRing = null;
+        private final Map<Long, PGPPrivateKey> privateKeys = new HashMap<>();
+
+        PgpKeys(String secretKey, String secretKeyPassword, String publicKey) {
+            this.secretKey = secretKey;
+            this.secretKeyPassword = secretKeyPassword.toCharArray();
+            this.publicKey = publicKey;
+        }
+
+        public synchronized PGPPrivateKey getPrivateKey(long keyID) throws IOException, PGPException, NoSuchProviderException {
+            if (privateKeys.containsKey(keyID)) {
+                return privateKeys.get(keyID);
+            }
+
+            if (secretKeyRing == null) {
+                try (InputStream secretKeyIn = new BufferedInputStream(new ByteArrayInputStream(secretKey.getBytes()))) {
+                    secretKeyRing = new PGPSecretKeyRingCollection(PGPUtil.getDecoderStream(secretKeyIn), new JcaKeyFingerprintCalculator());
+                }
+            }
+
+            PGPPrivateKey ret = findSecretKey(secretKeyRing, keyID, secretKeyPassword);
+            privateKeys.put(keyID, ret);
+            return ret;
+        }
+
+        public synchronized PGPPublicKeyRingCollection getPublicKeyRing() throws IOException, PGPException {
+            if (publicKeyRing == null) {
+                try (InputStream publicKeyStream = new ByteArrayInputStream(publicKey.getBytes())) {
+                    publicKeyRing = new PGPPublicKeyRingCollection(PGPUtil.getDecoderStream(publicKeyStream), new JcaKeyFingerprintCalculator());
+                }
+            }
+            return publicKeyRing;
+        }
+
+        /**
+         * zeroes our copy of the password and drops the parsed keys. The BouncyCastle key objects can't be zeroed
+         * themselves, so this just makes sure nothing keeps them reachable.
+         */
+        public synchronized void clear() {
+            Arrays.fill(secretKeyPassword, '\0');
+            privateKeys.clear();
+            secretKeyRing = null;
+            publicKeyRing = null;
+        }
+    }
 }